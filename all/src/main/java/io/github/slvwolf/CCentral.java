@@ -1,8 +1,10 @@
 package io.github.slvwolf;
 
 import mousio.etcd4j.EtcdClient;
+import org.slf4j.LoggerFactory;
 
 import java.net.URI;
+import java.nio.file.Path;
 
 public class CCentral {
 
@@ -11,8 +13,45 @@ public class CCentral {
     return new CCEtcdClient(new EtcdAccess(client, serviceId, ""));
   }
 
+  /**
+   * Connect to Etcd hosts. Without any hosts an in-memory client serving default values is returned.
+   */
   public static CCClient initWithEtcdHost(String serviceId, URI[] hosts) {
+    if (hosts == null || hosts.length == 0) {
+      LoggerFactory.getLogger(CCentral.class).warn("No Etcd hosts provided for {}, using in-memory configuration",
+          serviceId);
+      return initInMemory();
+    }
     return new CCEtcdClient(serviceId, hosts);
   }
 
+  /**
+   * Connect to Etcd over the v3 gRPC API without TLS. Instance data is kept alive with a lease and configuration
+   * changes are watched.
+   *
+   * @param target gRPC target, for example "localhost:2379" or "dns:///etcd.example.com:2379".
+   */
+  public static CCClient initWithEtcd3(String serviceId, String target) {
+    // Client ID will be injected by the CCEtcdClient
+    return new CCEtcdClient(Etcd3Access.connect(target, serviceId, ""));
+  }
+
+  /**
+   * Client without any network resources. Serves default values and values set with
+   * {@link CCMemoryClient#setConfig}, metrics are discarded.
+   */
+  public static CCMemoryClient initInMemory() {
+    return new CCMemoryClient();
+  }
+
+  /**
+   * Client reading configuration from a local file, for example a key of a mounted ConfigMap. The file has the same
+   * format as the configuration in Etcd and changes are applied as soon as they are written, metrics are discarded.
+   *
+   * @param file Configuration file, default values are used while it does not exist.
+   */
+  public static CCMemoryClient initWithConfigFile(Path file) {
+    return new CCMemoryClient(new FileConfigBackend(file));
+  }
+
 }
@@ -0,0 +1,31 @@
+package io.github.slvwolf.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks single-threaded and contended with GC profiler enabled. Results are written as json to
+ * jmh-result-t{threads}.json, the output directory can be given as the first argument. The benchmarks jar also
+ * accepts the normal JMH command line when run with org.openjdk.jmh.Main.
+ */
+public class BenchmarkRunner {
+  private static final int[] THREADS = {1, 4, 16, 64};
+
+  public static void main(String[] args) throws RunnerException {
+    String directory = args.length > 0 ? args[0] : ".";
+    for (int threads : THREADS) {
+      Options options = new OptionsBuilder()
+          .include(BenchmarkRunner.class.getPackage().getName() + ".*Benchmark")
+          .threads(threads)
+          .addProfiler(GCProfiler.class)
+          .resultFormat(ResultFormatType.JSON)
+          .result(directory + "/jmh-result-t" + threads + ".json")
+          .build();
+      new Runner(options).run();
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package io.github.slvwolf.benchmarks;
+
+import io.github.slvwolf.CCEtcdClient;
+
+import java.util.Arrays;
+
+/**
+ * Client setup shared by the benchmarks.
+ */
+final class Clients {
+  static final String CONFIG = "{\"flag\": {\"value\": \"1\"}, \"limit\": {\"value\": \"100\"}, "
+      + "\"ratio\": {\"value\": \"0.5\"}, \"hosts\": {\"value\": \"[\\\"a\\\", \\\"b\\\"]\"}}";
+
+  private Clients() {
+  }
+
+  static CCEtcdClient create(boolean background) {
+    return create(new StubEtcdAccess(CONFIG), background);
+  }
+
+  /**
+   * @return Client with the benchmark fields, refreshed once on the calling thread.
+   */
+  static CCEtcdClient create(StubEtcdAccess etcd, boolean background) {
+    CCEtcdClient client = new CCEtcdClient(etcd);
+    client.addBooleanField("flag", "Flag", "Feature flag", false);
+    client.addIntField("limit", "Limit", "Request limit", 10);
+    client.addFloatField("ratio", "Ratio", "Sample ratio", 0.1f);
+    client.addListField("hosts", "Hosts", "Backend hosts", Arrays.asList("x"));
+    client.refresh();
+    if (background) {
+      client.startBackgroundRefresh();
+    }
+    return client;
+  }
+}
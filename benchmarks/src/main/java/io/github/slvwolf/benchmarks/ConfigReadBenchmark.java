@@ -0,0 +1,81 @@
+package io.github.slvwolf.benchmarks;
+
+import io.github.slvwolf.BooleanConfig;
+import io.github.slvwolf.CCEtcdClient;
+import io.github.slvwolf.IntConfig;
+import io.github.slvwolf.UnknownConfigException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration read hot path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigReadBenchmark {
+  @Param({"false", "true"})
+  public boolean background;
+  private CCEtcdClient client;
+  private IntConfig limit;
+  private BooleanConfig flag;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    client = Clients.create(background);
+    limit = client.addIntConfig("limit", "Limit", "Request limit", 10);
+    flag = client.addBooleanConfig("flag", "Flag", "Feature flag", false);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    client.stopBackgroundRefresh();
+  }
+
+  @Benchmark
+  public String getConfig() throws UnknownConfigException {
+    return client.getConfig("limit");
+  }
+
+  @Benchmark
+  public Integer getConfigInt() {
+    return client.getConfigInt("limit");
+  }
+
+  @Benchmark
+  public Boolean getConfigBool() {
+    return client.getConfigBool("flag");
+  }
+
+  @Benchmark
+  public List<String> getConfigList() {
+    return client.getConfigList("hosts");
+  }
+
+  @Benchmark
+  public Integer intHandle() {
+    return limit.get();
+  }
+
+  @Benchmark
+  public Boolean booleanHandle() {
+    return flag.get();
+  }
+}
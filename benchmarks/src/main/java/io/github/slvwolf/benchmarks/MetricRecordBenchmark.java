@@ -0,0 +1,85 @@
+package io.github.slvwolf.benchmarks;
+
+import io.github.slvwolf.CCEtcdClient;
+import io.github.slvwolf.CounterHandle;
+import io.github.slvwolf.Timer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counter and histogram record hot path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricRecordBenchmark {
+  private static final String[] STATUSES = {"200", "404", "500", "503"};
+  @Param({"false", "true"})
+  public boolean background;
+  private CCEtcdClient client;
+  private CounterHandle requests;
+  private Timer latency;
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+    private int next;
+
+    String status() {
+      next = (next + 1) & 3;
+      return STATUSES[next];
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    client = Clients.create(background);
+    requests = client.counter("requests").withGroup("api");
+    latency = client.timer("latency");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    client.stopBackgroundRefresh();
+  }
+
+  @Benchmark
+  public void incrementNoGroups() {
+    client.incrementInstanceCounter("requests");
+  }
+
+  @Benchmark
+  public void incrementWithGroups(ThreadState state) {
+    client.incrementInstanceCounter("requests", "api", state.status());
+  }
+
+  @Benchmark
+  public void counterHandle(ThreadState state) {
+    requests.withGroup(state.status()).increment();
+  }
+
+  @Benchmark
+  public void addHistogram() {
+    client.addHistogram("latency", 12);
+  }
+
+  @Benchmark
+  public void timer() {
+    latency.update(12_000_000, TimeUnit.NANOSECONDS);
+  }
+}
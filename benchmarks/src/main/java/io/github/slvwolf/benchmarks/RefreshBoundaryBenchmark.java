@@ -0,0 +1,72 @@
+package io.github.slvwolf.benchmarks;
+
+import io.github.slvwolf.CCEtcdClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and records where every invocation crosses a refresh boundary, showing what the caller pays for a refresh
+ * with caller thread refresh compared to background refresh.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RefreshBoundaryBenchmark {
+  @Param({"false", "true"})
+  public boolean background;
+  private CCEtcdClient client;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    StubEtcdAccess etcd = new StubEtcdAccess(Clients.CONFIG);
+    // Created without background refresh, the first refresh is then done before the intervals are changed
+    client = Clients.create(etcd, false);
+    client.incrementInstanceCounter("requests", "api", "200");
+    client.addHistogram("latency", 12);
+    // Negative intervals make the configuration check and the metric upload due on every call, so every invocation
+    // crosses a refresh boundary
+    client.setConfigCheckInterval(-1);
+    client.setMetricInterval(-1);
+    if (background) {
+      client.startBackgroundRefresh();
+    }
+    long requests = etcd.blockingRequests();
+    client.getConfigInt("limit");
+    long expected = background ? requests : requests + 2;
+    if (etcd.blockingRequests() != expected) {
+      throw new IllegalStateException("Read made " + (etcd.blockingRequests() - requests)
+          + " blocking Etcd requests, expected " + (expected - requests));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    client.stopBackgroundRefresh();
+  }
+
+  @Benchmark
+  public Integer getConfigInt() {
+    return client.getConfigInt("limit");
+  }
+
+  @Benchmark
+  public void incrementWithGroups() {
+    client.incrementInstanceCounter("requests", "api", "200");
+  }
+}
@@ -0,0 +1,104 @@
+package io.github.slvwolf.benchmarks;
+
+import io.github.slvwolf.EtcdAccess;
+import io.github.slvwolf.VersionedValue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Etcd access answering from memory so benchmarks measure only the client.
+ */
+public class StubEtcdAccess extends EtcdAccess {
+  private final String config;
+  private final AtomicLong blockingRequests = new AtomicLong();
+
+  public StubEtcdAccess(String config) {
+    super(null, "benchmark", "");
+    this.config = config;
+  }
+
+  /**
+   * @return Number of configuration fetches and client data uploads made with the blocking methods.
+   */
+  public long blockingRequests() {
+    return blockingRequests.get();
+  }
+
+  @Override
+  public void sendClientInfo(String json) {
+    blockingRequests.incrementAndGet();
+  }
+
+  @Override
+  public void heartbeat() {
+  }
+
+  @Override
+  public String fetchConfig() {
+    return config;
+  }
+
+  @Override
+  public VersionedValue fetchConfigVersioned() {
+    blockingRequests.incrementAndGet();
+    return new VersionedValue(config, 1, 1);
+  }
+
+  @Override
+  public void sendSchema(String schemaJson) {
+  }
+
+  @Override
+  public VersionedValue fetchSchema() {
+    return null;
+  }
+
+  @Override
+  public void sendSchema(String schemaJson, long prevIndex) {
+  }
+
+  @Override
+  public void sendServiceInfo(String key, String data) {
+  }
+
+  @Override
+  public CompletableFuture<Void> sendClientInfoAsync(String json) {
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public CompletableFuture<Void> heartbeatAsync() {
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public CompletableFuture<String> fetchConfigAsync() {
+    return CompletableFuture.completedFuture(config);
+  }
+
+  @Override
+  public CompletableFuture<VersionedValue> fetchConfigVersionedAsync() {
+    return CompletableFuture.completedFuture(new VersionedValue(config, 1, 1));
+  }
+
+  @Override
+  public CompletableFuture<Void> sendSchemaAsync(String schemaJson) {
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public CompletableFuture<VersionedValue> fetchSchemaAsync() {
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public CompletableFuture<Void> sendSchemaAsync(String schemaJson, long prevIndex) {
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public CompletableFuture<Void> sendServiceInfoAsync(String key, String data) {
+    return CompletableFuture.completedFuture(null);
+  }
+}
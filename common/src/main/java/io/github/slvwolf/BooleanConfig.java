@@ -0,0 +1,20 @@
+package io.github.slvwolf;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Handle to a boolean configuration field.
+ */
+public final class BooleanConfig extends ConfigHandle {
+
+  BooleanConfig(SchemaItem item, AtomicReference<Runnable> beforeRead) {
+    super(item, beforeRead);
+  }
+
+  /**
+   * @return Current value or null if configured value is not a boolean.
+   */
+  public Boolean get() {
+    return getValue().getBool();
+  }
+}
@@ -1,8 +1,14 @@
 package io.github.slvwolf;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
-public interface CCClient {
+/**
+ * CCentral client. Methods added after the first release have default implementations built on the original ones,
+ * except for the typed configuration handles and {@link #getConfigSnapshot()} which need access to the schema and
+ * must be implemented by every client.
+ */
+public interface CCClient extends AutoCloseable {
   /**
    * Get unique clientId.
    * @return Unique Id.
@@ -12,7 +18,7 @@ public interface CCClient {
   /**
    * Add a string configuration field.
    *
-   * @param key Unique ket for configuration.
+   * @param key Unique key for configuration.
    * @param title (UI) Human readable title.
    * @param description (UI) Documentation about the configuration.
    * @param defaultValue Default value.
@@ -22,7 +28,7 @@ public interface CCClient {
   /**
    * Add a integer configuration field.
    *
-   * @param key Unique ket for configuration.
+   * @param key Unique key for configuration.
    * @param title (UI) Human readable title.
    * @param description (UI) Documentation about the configuration.
    * @param defaultValue Default value.
@@ -32,7 +38,7 @@ public interface CCClient {
   /**
    * Add a float configuration field.
    *
-   * @param key Unique ket for configuration.
+   * @param key Unique key for configuration.
    * @param title (UI) Human readable title.
    * @param description (UI) Documentation about the configuration.
    * @param defaultValue Default value.
@@ -44,7 +50,7 @@ public interface CCClient {
    * Add a password configuration field. This field will have its value hidden in the UI. This does
    * not protect the password in any other way.
    *
-   * @param key Unique ket for configuration.
+   * @param key Unique key for configuration.
    * @param title (UI) Human readable title.
    * @param description (UI) Documentation about the configuration.
    * @param defaultValue Default value.
@@ -54,7 +60,7 @@ public interface CCClient {
   /**
    * Add a list configuration field.
    *
-   * @param key Unique ket for configuration.
+   * @param key Unique key for configuration.
    * @param title (UI) Human readable title.
    * @param description (UI) Documentation about the configuration.
    * @param defaultValue Default value.
@@ -64,13 +70,80 @@ public interface CCClient {
   /**
    * Add a boolean configuration field.
    *
-   * @param key Unique ket for configuration.
+   * @param key Unique key for configuration.
    * @param title (UI) Human readable title.
    * @param description (UI) Documentation about the configuration.
    * @param defaultValue Default value.
    */
   void addBooleanField(String key, String title, String description, boolean defaultValue);
 
+  /**
+   * Add a string configuration field and return a handle for reading it. Reading through the handle skips key
+   * filtering and lookups.
+   *
+   * @param key Unique key for configuration.
+   * @param title (UI) Human readable title.
+   * @param description (UI) Documentation about the configuration.
+   * @param defaultValue Default value.
+   * @return Handle to the field.
+   */
+  StringConfig addStringConfig(String key, String title, String description, String defaultValue);
+
+  /**
+   * Add a integer configuration field and return a handle for reading it.
+   *
+   * @param key Unique key for configuration.
+   * @param title (UI) Human readable title.
+   * @param description (UI) Documentation about the configuration.
+   * @param defaultValue Default value.
+   * @return Handle to the field.
+   */
+  IntConfig addIntConfig(String key, String title, String description, int defaultValue);
+
+  /**
+   * Add a float configuration field and return a handle for reading it.
+   *
+   * @param key Unique key for configuration.
+   * @param title (UI) Human readable title.
+   * @param description (UI) Documentation about the configuration.
+   * @param defaultValue Default value.
+   * @return Handle to the field.
+   */
+  FloatConfig addFloatConfig(String key, String title, String description, float defaultValue);
+
+  /**
+   * Add a password configuration field and return a handle for reading it.
+   *
+   * @param key Unique key for configuration.
+   * @param title (UI) Human readable title.
+   * @param description (UI) Documentation about the configuration.
+   * @param defaultValue Default value.
+   * @return Handle to the field.
+   */
+  StringConfig addPasswordConfig(String key, String title, String description, String defaultValue);
+
+  /**
+   * Add a list configuration field and return a handle for reading it.
+   *
+   * @param key Unique key for configuration.
+   * @param title (UI) Human readable title.
+   * @param description (UI) Documentation about the configuration.
+   * @param defaultValue Default value.
+   * @return Handle to the field.
+   */
+  ListConfig addListConfig(String key, String title, String description, List<String> defaultValue);
+
+  /**
+   * Add a boolean configuration field and return a handle for reading it.
+   *
+   * @param key Unique key for configuration.
+   * @param title (UI) Human readable title.
+   * @param description (UI) Documentation about the configuration.
+   * @param defaultValue Default value.
+   * @return Handle to the field.
+   */
+  BooleanConfig addBooleanConfig(String key, String title, String description, boolean defaultValue);
+
   /**
    * Get list value from configuration.
    *
@@ -120,12 +193,30 @@ public interface CCClient {
    */
   String getConfigString(String key);
 
+  /**
+   * Get immutable snapshot of all configuration values. Values in a snapshot are from the same configuration version.
+   *
+   * @return Current snapshot.
+   */
+  ConfigSnapshot getConfigSnapshot();
+
   void addInstanceInfo(String key, String data);
 
   void addServiceInfo(String key, String data);
 
   void refresh();
 
+  /**
+   * Get pre-resolved handle for instance counter. Keep the handle, updates through it skip key filtering and lookups.
+   * The default implementation updates through the instance counter methods.
+   *
+   * @param key Counter key
+   * @return Counter handle
+   */
+  default CounterHandle counter(String key) {
+    return new InstanceCounterHandle(this, key);
+  }
+
   /**
    * Increment instance counter
    * @param key Counter key
@@ -152,6 +243,17 @@ public interface CCClient {
 
   void addHistogram(String key, long timeInMilliseconds);
 
+  /**
+   * Get latency timer. Percentiles of each upload interval are reported in milliseconds with the histogram key. The
+   * default implementation records through {@link #addHistogram} with millisecond precision.
+   *
+   * @param key Histogram key
+   * @return Timer for the key
+   */
+  default Timer timer(String key) {
+    return (duration, unit) -> addHistogram(key, unit.toMillis(duration));
+  }
+
   String getApiVersion();
 
   /**
@@ -163,4 +265,28 @@ public interface CCClient {
    * @throws UnknownConfigException Configuration item missing
    */
   void addCallback(String configuration, ConfigUpdate func) throws UnknownConfigException;
+
+  /**
+   * Listen changes of given configuration option. Listener receives the typed values before and after the change.
+   * The default implementation registers a callback and reads the new value with {@link #getConfigString}.
+   *
+   * @param configuration Key for configuration, has to be defined before called
+   * @param listener      Called listener
+   * @throws UnknownConfigException Configuration item missing
+   */
+  default void addListener(String configuration, ConfigListener listener) throws UnknownConfigException {
+    AtomicReference<ConfigValue> previous = new AtomicReference<>(
+        ConfigValue.parse(configuration, SchemaItem.Type.STRING, getConfigString(configuration)));
+    addCallback(configuration, key -> {
+      ConfigValue value = ConfigValue.parse(key, SchemaItem.Type.STRING, getConfigString(key));
+      listener.configChanged(key, previous.getAndSet(value), value);
+    });
+  }
+
+  /**
+   * Release resources held by the client. Client should not be used after closing.
+   */
+  @Override
+  default void close() {
+  }
 }
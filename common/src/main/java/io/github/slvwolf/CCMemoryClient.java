@@ -0,0 +1,406 @@
+package io.github.slvwolf;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Client keeping all configuration in memory. Serves default values and values set with {@link #setConfig}, metrics
+ * are discarded. Does not create any network resources, use this for local development, tests and benchmarks.
+ * <p>
+ * Configuration can also be read from a {@link ConfigBackend}, for example a mounted ConfigMap with
+ * {@link FileConfigBackend}. Each update from the backend replaces all values set before.
+ */
+public class CCMemoryClient implements CCClient {
+  private static final String API_VERSION = "1";
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final AtomicReference<Runnable> NO_REFRESH = new AtomicReference<>();
+  private static final Timer NOOP_TIMER = (duration, unit) -> { };
+  private static final Logger LOG = LoggerFactory.getLogger(CCMemoryClient.class);
+  private final String clientId = UUID.randomUUID().toString();
+  private final Map<String, SchemaItem> schema = new ConcurrentHashMap<>();
+  private final Map<String, String> overrides = new HashMap<>();
+  private final Object lock = new Object();
+  private volatile ConfigSnapshot snapshot = new ConfigSnapshot(0, new HashMap<>());
+  private long snapshotVersion;
+  private final ConfigBackend backend;
+
+  public CCMemoryClient() {
+    this(null);
+  }
+
+  /**
+   * @param backend Source of configuration values, watched until the client is closed. Null for no backend.
+   */
+  public CCMemoryClient(ConfigBackend backend) {
+    this.backend = backend;
+    addIntField("v", "Version", "Schema version for tracking instances", 0);
+    if (backend != null) {
+      backend.watch(this::applyConfigData);
+    }
+  }
+
+  /**
+   * Override configuration value. Value is used for the field when it is defined, callbacks are called if the field
+   * already exists and the value changed.
+   *
+   * @param key Key for configuration.
+   * @param value New value, null resets the field back to its default value.
+   */
+  public void setConfig(String key, String value) {
+    key = Keys.filter(key);
+    List<Runnable> notifications = new LinkedList<>();
+    synchronized (lock) {
+      if (value == null) {
+        overrides.remove(key);
+      } else {
+        overrides.put(key, value);
+      }
+      SchemaItem item = schema.get(key);
+      if (item != null && updateItem(item, value, notifications)) {
+        publishSnapshot();
+      }
+    }
+    notifications.forEach(Runnable::run);
+  }
+
+  /**
+   * Replace all values with configuration data in the format stored in Etcd. Invalid data is ignored.
+   *
+   * @param data Configuration as {"key": {"value": "..."}}
+   */
+  void applyConfigData(String data) {
+    Map<String, String> values = new HashMap<>();
+    try {
+      JsonNode config = MAPPER.readTree(data);
+      Iterator<Map.Entry<String, JsonNode>> fields = config.fields();
+      while (fields.hasNext()) {
+        Map.Entry<String, JsonNode> entry = fields.next();
+        JsonNode value = entry.getValue().get("value");
+        if (value == null || value.isNull()) {
+          continue;
+        }
+        values.put(Keys.filter(entry.getKey()), value.isValueNode() ? value.asText() : value.toString());
+      }
+    } catch (IOException e) {
+      LOG.error("Failed to apply configuration data: " + e.getMessage(), e);
+      return;
+    }
+    List<Runnable> notifications = new LinkedList<>();
+    synchronized (lock) {
+      overrides.clear();
+      overrides.putAll(values);
+      boolean changed = false;
+      for (SchemaItem item : schema.values()) {
+        changed |= updateItem(item, values.get(item.key), notifications);
+      }
+      if (changed) {
+        publishSnapshot();
+      }
+    }
+    LOG.debug("Configuration data applied");
+    notifications.forEach(Runnable::run);
+  }
+
+  /**
+   * Set configuration value of the item. Caller must hold the lock and publish a new snapshot if the value changed.
+   *
+   * @param notifications Listener calls to run after releasing the lock are added here
+   * @return True if the value changed
+   */
+  private boolean updateItem(SchemaItem item, String value, List<Runnable> notifications) {
+    if (item.configValue == null ? value == null : item.configValue.equals(value)) {
+      return false;
+    }
+    ConfigValue oldValue = item.currentValue();
+    item.setConfigValue(value);
+    ConfigValue newValue = item.currentValue();
+    for (ConfigListener listener : item.getListeners()) {
+      notifications.add(() -> {
+        try {
+          listener.configChanged(item.key, oldValue, newValue);
+        } catch (Exception exception) {
+          LOG.warn("Configuration update threw unexpected exception", exception);
+        }
+      });
+    }
+    return true;
+  }
+
+  @Override
+  public String getClientId() {
+    return clientId;
+  }
+
+  @Override
+  public void addField(String key, String title, String description, String defaultValue) {
+    addStringConfig(key, title, description, defaultValue);
+  }
+
+  @Override
+  public void addIntField(String key, String title, String description, int defaultValue) {
+    addIntConfig(key, title, description, defaultValue);
+  }
+
+  @Override
+  public void addFloatField(String key, String title, String description, float defaultValue) {
+    addFloatConfig(key, title, description, defaultValue);
+  }
+
+  @Override
+  public void addPasswordField(String key, String title, String description, String defaultValue) {
+    addPasswordConfig(key, title, description, defaultValue);
+  }
+
+  @Override
+  public void addListField(String key, String title, String description, List<String> defaultValue) {
+    addListConfig(key, title, description, defaultValue);
+  }
+
+  @Override
+  public void addBooleanField(String key, String title, String description, boolean defaultValue) {
+    addBooleanConfig(key, title, description, defaultValue);
+  }
+
+  @Override
+  public StringConfig addStringConfig(String key, String title, String description, String defaultValue) {
+    return new StringConfig(addFieldType(key, title, description, defaultValue, SchemaItem.Type.STRING), NO_REFRESH);
+  }
+
+  @Override
+  public IntConfig addIntConfig(String key, String title, String description, int defaultValue) {
+    return new IntConfig(addFieldType(key, title, description, Integer.toString(defaultValue),
+        SchemaItem.Type.INTEGER), NO_REFRESH);
+  }
+
+  @Override
+  public FloatConfig addFloatConfig(String key, String title, String description, float defaultValue) {
+    return new FloatConfig(addFieldType(key, title, description, Float.toString(defaultValue),
+        SchemaItem.Type.FLOAT), NO_REFRESH);
+  }
+
+  @Override
+  public StringConfig addPasswordConfig(String key, String title, String description, String defaultValue) {
+    return new StringConfig(addFieldType(key, title, description, defaultValue, SchemaItem.Type.PASSWORD),
+        NO_REFRESH);
+  }
+
+  @Override
+  public ListConfig addListConfig(String key, String title, String description, List<String> defaultValue) {
+    String value = null;
+    try {
+      value = MAPPER.writeValueAsString(defaultValue);
+    } catch (JsonProcessingException e) {
+      LOG.error("Could not register list type for key {}: ", key, e);
+    }
+    return new ListConfig(addFieldType(key, title, description, value, SchemaItem.Type.LIST), NO_REFRESH);
+  }
+
+  @Override
+  public BooleanConfig addBooleanConfig(String key, String title, String description, boolean defaultValue) {
+    return new BooleanConfig(addFieldType(key, title, description, defaultValue ? "1" : "0",
+        SchemaItem.Type.BOOLEAN), NO_REFRESH);
+  }
+
+  private SchemaItem addFieldType(String key, String title, String description, String defaultValue,
+                                  SchemaItem.Type type) {
+    key = Keys.filter(key);
+    SchemaItem item;
+    synchronized (lock) {
+      SchemaItem previous = schema.get(key);
+      item = previous == null ? new SchemaItem(key, title, description, defaultValue, type)
+          : new SchemaItem(previous, title, description, defaultValue, type);
+      String override = overrides.get(key);
+      if (override != null || previous != null) {
+        item.setConfigValue(override);
+      }
+      schema.put(key, item);
+      publishSnapshot();
+    }
+    return item;
+  }
+
+  /**
+   * Build and publish new immutable snapshot from the current schema. Caller must hold the lock.
+   */
+  private void publishSnapshot() {
+    Map<String, ConfigValue> values = new HashMap<>();
+    for (SchemaItem item : schema.values()) {
+      values.put(item.key, item.currentValue());
+    }
+    snapshot = new ConfigSnapshot(++snapshotVersion, values);
+  }
+
+  private ConfigValue getConfigValue(String key) {
+    ConfigValue value = snapshot.getValue(Keys.filter(key));
+    if (value == null) {
+      LOG.warn("Configuration {} was requested before initialized. Always introduce all " +
+          "configurations with addField method before using them.", key);
+    }
+    return value;
+  }
+
+  @Override
+  public List<String> getConfigList(String key) {
+    ConfigValue value = getConfigValue(key);
+    return value == null ? null : value.getList();
+  }
+
+  @Override
+  public String getConfig(String key) throws UnknownConfigException {
+    key = Keys.filter(key);
+    ConfigValue value = snapshot.getValue(key);
+    if (value == null) {
+      throw new UnknownConfigException(key);
+    }
+    return value.getString();
+  }
+
+  @Override
+  public Boolean getConfigBool(String key) {
+    ConfigValue value = getConfigValue(key);
+    return value == null ? null : value.getBool();
+  }
+
+  @Override
+  public Integer getConfigInt(String key) {
+    ConfigValue value = getConfigValue(key);
+    return value == null ? null : value.getInt();
+  }
+
+  @Override
+  public Float getConfigFloat(String key) {
+    ConfigValue value = getConfigValue(key);
+    return value == null ? null : value.getFloat();
+  }
+
+  @Override
+  public String getConfigString(String key) {
+    ConfigValue value = getConfigValue(key);
+    return value == null ? null : value.getString();
+  }
+
+  @Override
+  public ConfigSnapshot getConfigSnapshot() {
+    return snapshot;
+  }
+
+  @Override
+  public void addInstanceInfo(String key, String data) {
+  }
+
+  @Override
+  public void addServiceInfo(String key, String data) {
+  }
+
+  @Override
+  public void refresh() {
+  }
+
+  @Override
+  public CounterHandle counter(String key) {
+    return new NoopCounter(Keys.filter(key));
+  }
+
+  @Override
+  public void incrementInstanceCounter(String key, int amount, String... groups) {
+  }
+
+  @Override
+  public void incrementInstanceCounter(String key, String... groups) {
+  }
+
+  @Override
+  public void setInstanceCounter(String key, int amount, String... groups) {
+  }
+
+  @Override
+  public void addHistogram(String key, long timeInMilliseconds) {
+  }
+
+  @Override
+  public Timer timer(String key) {
+    return NOOP_TIMER;
+  }
+
+  @Override
+  public String getApiVersion() {
+    return API_VERSION;
+  }
+
+  @Override
+  public void addCallback(String configuration, ConfigUpdate func) throws UnknownConfigException {
+    getSchemaItem(configuration).addCallback(func);
+  }
+
+  @Override
+  public void addListener(String configuration, ConfigListener listener) throws UnknownConfigException {
+    getSchemaItem(configuration).addListener(listener);
+  }
+
+  @Override
+  public void close() {
+    if (backend != null) {
+      backend.close();
+    }
+  }
+
+  private SchemaItem getSchemaItem(String configuration) throws UnknownConfigException {
+    SchemaItem item = schema.get(Keys.filter(configuration));
+    if (item == null) {
+      throw new UnknownConfigException("Configuration option for '" + configuration + "' is missing");
+    }
+    return item;
+  }
+
+  private static final class NoopCounter implements CounterHandle {
+    private final String key;
+
+    private NoopCounter(String key) {
+      this.key = key;
+    }
+
+    @Override
+    public String getKey() {
+      return key;
+    }
+
+    @Override
+    public CounterHandle withGroup(String group) {
+      return new NoopCounter(key + "." + Keys.filter(group));
+    }
+
+    @Override
+    public CounterHandle withGroups(String... groups) {
+      CounterHandle handle = this;
+      for (String group : groups) {
+        handle = handle.withGroup(group);
+      }
+      return handle;
+    }
+
+    @Override
+    public void increment() {
+    }
+
+    @Override
+    public void increment(int amount) {
+    }
+
+    @Override
+    public void set(int amount) {
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package io.github.slvwolf;
+
+import java.util.function.Consumer;
+
+/**
+ * Source of configuration data for clients not connected to Etcd. Data uses the same JSON format as the configuration
+ * stored in Etcd: {@code {"key": {"value": "..."}}}.
+ */
+public interface ConfigBackend extends AutoCloseable {
+  /**
+   * Start delivering configuration data. Listener is called with the current data before this returns if data is
+   * available, and afterwards every time the data changes. Calls are never concurrent and are in the order the changes
+   * were seen.
+   *
+   * @param listener Receives complete configuration data
+   */
+  void watch(Consumer<String> listener);
+
+  /**
+   * Stop watching for changes and release resources held by the backend.
+   */
+  @Override
+  default void close() {
+  }
+}
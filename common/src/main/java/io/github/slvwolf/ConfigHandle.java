@@ -0,0 +1,40 @@
+package io.github.slvwolf;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Handle to a single configuration field. Reading through a handle skips key filtering and lookups, it reads the
+ * current value directly from the field. Handles keep reading the field when its key is registered again.
+ */
+public abstract class ConfigHandle {
+  private final String key;
+  private final AtomicReference<ConfigValue> value;
+  private final AtomicReference<Runnable> beforeRead;
+
+  /**
+   * @param beforeRead Holds the refresh to run before each read, empty when values are refreshed in the background.
+   */
+  ConfigHandle(SchemaItem item, AtomicReference<Runnable> beforeRead) {
+    this.key = item.key;
+    this.value = item.valueReference();
+    this.beforeRead = beforeRead;
+  }
+
+  /**
+   * @return Key for configuration.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return Current configured or default value.
+   */
+  public ConfigValue getValue() {
+    Runnable refresh = beforeRead.get();
+    if (refresh != null) {
+      refresh.run();
+    }
+    return value.get();
+  }
+}
@@ -0,0 +1,13 @@
+package io.github.slvwolf;
+
+/**
+ * Listener for configuration changes receiving the typed values before and after the change.
+ */
+public interface ConfigListener {
+  /**
+   * @param configKey Key for configuration.
+   * @param oldValue Value before the change.
+   * @param newValue Value after the change.
+   */
+  void configChanged(String configKey, ConfigValue oldValue, ConfigValue newValue);
+}
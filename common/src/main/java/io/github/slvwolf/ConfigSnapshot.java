@@ -0,0 +1,64 @@
+package io.github.slvwolf;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable view of all configuration values at one point in time. Use this to read several keys from the same
+ * configuration version.
+ */
+public final class ConfigSnapshot {
+  private final long version;
+  private final Map<String, ConfigValue> values;
+
+  ConfigSnapshot(long version, Map<String, ConfigValue> values) {
+    this.version = version;
+    this.values = Collections.unmodifiableMap(new HashMap<>(values));
+  }
+
+  /**
+   * @return Version increasing on every configuration or schema change.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @param key Key for configuration.
+   * @return Value or null if configuration has not been defined.
+   */
+  public ConfigValue getValue(String key) {
+    return values.get(key);
+  }
+
+  public String getString(String key) {
+    ConfigValue value = values.get(key);
+    return value == null ? null : value.getString();
+  }
+
+  public Integer getInt(String key) {
+    ConfigValue value = values.get(key);
+    return value == null ? null : value.getInt();
+  }
+
+  public Float getFloat(String key) {
+    ConfigValue value = values.get(key);
+    return value == null ? null : value.getFloat();
+  }
+
+  public Boolean getBool(String key) {
+    ConfigValue value = values.get(key);
+    return value == null ? null : value.getBool();
+  }
+
+  public List<String> getList(String key) {
+    ConfigValue value = values.get(key);
+    return value == null ? null : value.getList();
+  }
+
+  public Map<String, ConfigValue> getValues() {
+    return values;
+  }
+}
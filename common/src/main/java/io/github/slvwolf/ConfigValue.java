@@ -0,0 +1,114 @@
+package io.github.slvwolf;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable configuration value. Typed representations are parsed once when the value is created so reading them
+ * does not parse or allocate.
+ */
+public final class ConfigValue {
+  private static final Logger LOG = LoggerFactory.getLogger(ConfigValue.class);
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final TypeReference<List<String>> LIST_TYPE = new TypeReference<List<String>>() {
+  };
+  private final String value;
+  private final Integer intValue;
+  private final Float floatValue;
+  private final Boolean boolValue;
+  private final List<String> listValue;
+
+  private ConfigValue(String value, Integer intValue, Float floatValue, List<String> listValue) {
+    this.value = value;
+    this.intValue = intValue;
+    this.floatValue = floatValue;
+    this.boolValue = intValue == null ? null : intValue == 1;
+    this.listValue = listValue;
+  }
+
+  /**
+   * Parse value. Failures are logged only if the value does not match the declared type.
+   *
+   * @param key Configuration key, used for logging.
+   * @param type Declared type.
+   * @param value Raw value.
+   * @return Parsed value.
+   */
+  static ConfigValue parse(String key, SchemaItem.Type type, String value) {
+    if (value == null) {
+      return new ConfigValue(null, null, null, null);
+    }
+    Integer intValue = null;
+    try {
+      intValue = Integer.valueOf(value);
+    } catch (NumberFormatException e) {
+      if (type == SchemaItem.Type.INTEGER || type == SchemaItem.Type.BOOLEAN) {
+        LOG.warn("Could not convert configuration {} value '{}' to int.", key, value);
+      }
+    }
+    Float floatValue = null;
+    try {
+      floatValue = Float.valueOf(value);
+    } catch (NumberFormatException e) {
+      if (type == SchemaItem.Type.FLOAT) {
+        LOG.warn("Could not convert configuration {} value '{}' to float.", key, value);
+      }
+    }
+    List<String> listValue = null;
+    if (type == SchemaItem.Type.LIST || value.startsWith("[")) {
+      try {
+        listValue = Collections.unmodifiableList(MAPPER.readValue(value, LIST_TYPE));
+      } catch (IOException e) {
+        LOG.warn("Could not parse value of configuration key '{}'. Value needs to be a valid json list of strings.",
+            key);
+      }
+    }
+    return new ConfigValue(value, intValue, floatValue, listValue);
+  }
+
+  /**
+   * @return Raw value.
+   */
+  public String getString() {
+    return value;
+  }
+
+  /**
+   * @return Value as int or null if value is not an int.
+   */
+  public Integer getInt() {
+    return intValue;
+  }
+
+  /**
+   * @return Value as float or null if value is not a float.
+   */
+  public Float getFloat() {
+    return floatValue;
+  }
+
+  /**
+   * @return True if value is 1, null if value is not an int.
+   */
+  public Boolean getBool() {
+    return boolValue;
+  }
+
+  /**
+   * @return Unmodifiable list or null if value is not a json list of strings.
+   */
+  public List<String> getList() {
+    return listValue;
+  }
+
+  @Override
+  public String toString() {
+    return value;
+  }
+}
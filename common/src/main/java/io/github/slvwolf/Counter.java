@@ -1,36 +1,140 @@
 package io.github.slvwolf;
 
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Thread-safe counter keeping a ring of windows aligned to the upload interval. Every completed window is reported
+ * until an upload containing it is acknowledged, so each window is reported exactly once even if uploads are late or
+ * fail. Updates which reach a window after it was read for an upload are moved to the current window when the upload
+ * is acknowledged. Windows older than the ring are dropped.
+ */
 class Counter {
-  private int last;
-  private int current;
-  private long ts;
+  /**
+   * Number of windows in the ring, at most one less is reported at once.
+   */
+  static final int WINDOWS = 16;
+  private static final long CLAIMED = Long.MIN_VALUE;
+  private final LongSupplier clock;
+  private final long windowMillis;
+  private final AtomicLongArray values = new AtomicLongArray(WINDOWS);
+  private final AtomicLongArray stamps = new AtomicLongArray(WINDOWS);
+  private final AtomicLongArray reported = new AtomicLongArray(WINDOWS);
+  private volatile long acknowledged;
+
+  /**
+   * @param clock Current time in milliseconds
+   * @param windowMillis Window length, windows start at multiples of this
+   */
+  Counter(LongSupplier clock, long windowMillis) {
+    this.clock = clock;
+    this.windowMillis = windowMillis;
+    // Windows before the counter was created are never reported
+    acknowledged = window(clock.getAsLong()) - 1;
+  }
+
+  long window(long millis) {
+    return Math.floorDiv(millis, windowMillis);
+  }
 
-  public Counter() {
-    last = 0;
-    current = 0;
-    ts = System.currentTimeMillis();
+  private static int slot(long window) {
+    return (int) Math.floorMod(window, (long) WINDOWS);
   }
 
-  private void refresh() {
-    while (ts + 60_000 < System.currentTimeMillis()) {
-      last = current;
-      current = 0;
-      ts = ts + 60_000;
+  /**
+   * @return Slot of the window, cleared first if it still holds an older window.
+   */
+  private int slotOf(long window) {
+    int slot = slot(window);
+    while (true) {
+      long stamp = stamps.get(slot);
+      if (stamp == CLAIMED) {
+        // Another thread is clearing the slot
+        Thread.yield();
+      } else if (stamp >= window) {
+        return slot;
+      } else if (stamps.compareAndSet(slot, stamp, CLAIMED)) {
+        values.set(slot, 0);
+        reported.set(slot, 0);
+        stamps.set(slot, window);
+        return slot;
+      }
     }
   }
 
   public void increment(int amount) {
-    refresh();
-    current += amount;
+    add(window(clock.getAsLong()), amount);
   }
 
   public void set(int amount) {
-    refresh();
-    current = amount;
+    long window = window(clock.getAsLong());
+    values.set(slotOf(window), amount);
+    if (window <= acknowledged) {
+      // Window was acknowledged while setting, the part not uploaded is moved
+      moveUnreported(window);
+    }
+  }
+
+  private void add(long window, long amount) {
+    values.addAndGet(slotOf(window), amount);
+    if (window <= acknowledged) {
+      // Window was acknowledged while adding, the amount was not uploaded
+      moveUnreported(window);
+    }
   }
 
-  public int getValue() {
-    refresh();
-    return last;
+  /**
+   * Copy values of completed windows not yet acknowledged, oldest first.
+   *
+   * @param window Current window, all windows before it are completed
+   * @param out Array of at least {@link #WINDOWS} values
+   * @return Number of values copied
+   */
+  int completed(long window, long[] out) {
+    long first = Math.max(acknowledged + 1, window - WINDOWS + 1);
+    int count = 0;
+    for (long completed = first; completed < window; completed++) {
+      int slot = slot(completed);
+      long value = 0;
+      if (stamps.get(slot) == completed) {
+        value = values.get(slot);
+        reported.set(slot, value);
+      }
+      out[count++] = value;
+    }
+    return count;
+  }
+
+  /**
+   * Mark windows before the given one as uploaded. Updates made to them after they were read by {@link #completed}
+   * are moved to the current window.
+   *
+   * @param window Window given to {@link #completed} for the acknowledged upload
+   */
+  void acknowledge(long window) {
+    long first = Math.max(acknowledged + 1, window - WINDOWS + 1);
+    if (window - 1 > acknowledged) {
+      // Published first, updates after this move their amount themselves
+      acknowledged = window - 1;
+    }
+    for (long completed = first; completed < window; completed++) {
+      moveUnreported(completed);
+    }
+  }
+
+  /**
+   * Move the part of an acknowledged window which was not read for the upload to the current window. The value is
+   * swapped atomically so every update is moved once.
+   */
+  private void moveUnreported(long window) {
+    int slot = slot(window);
+    if (stamps.get(slot) != window) {
+      return;
+    }
+    long base = reported.get(slot);
+    long unreported = values.getAndSet(slot, base) - base;
+    if (unreported != 0) {
+      add(Math.max(window(clock.getAsLong()), acknowledged + 1), unreported);
+    }
   }
 }
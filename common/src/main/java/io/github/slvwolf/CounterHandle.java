@@ -0,0 +1,47 @@
+package io.github.slvwolf;
+
+/**
+ * Pre-resolved instance counter. Resolve handles once and keep them, updating through a handle skips key filtering
+ * and lookups.
+ */
+public interface CounterHandle {
+  /**
+   * @return Counter key including groups.
+   */
+  String getKey();
+
+  /**
+   * Get handle for an additional group. Handles for dynamic group values are cached up to a limit.
+   *
+   * @param group Additional group for this key
+   * @return Handle for the group
+   */
+  CounterHandle withGroup(String group);
+
+  /**
+   * Get handle for additional groups.
+   *
+   * @param groups Additional groups for this key
+   * @return Handle for the groups
+   */
+  CounterHandle withGroups(String... groups);
+
+  /**
+   * Increment counter by one.
+   */
+  void increment();
+
+  /**
+   * Increment counter.
+   *
+   * @param amount Amount to increment
+   */
+  void increment(int amount);
+
+  /**
+   * Reset counter to predefined value.
+   *
+   * @param amount Value to set
+   */
+  void set(int amount);
+}
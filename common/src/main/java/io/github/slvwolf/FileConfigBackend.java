@@ -0,0 +1,125 @@
+package io.github.slvwolf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.function.Consumer;
+
+/**
+ * Configuration read from a local file, for example a key of a mounted Kubernetes ConfigMap. Changes are seen through
+ * a {@link WatchService} on the parent directory, so there is no polling or network I/O.
+ * <p>
+ * The file itself is not watched. ConfigMap volumes update the file by pointing the {@code ..data} symlink to a new
+ * directory with an atomic rename, which produces events only for the symlinks in the parent directory. Every event in
+ * the directory causes the file to be read again through the symlinks and the data is delivered only if it changed.
+ */
+public class FileConfigBackend implements ConfigBackend {
+  private static final Logger LOG = LoggerFactory.getLogger(FileConfigBackend.class);
+  private final Path file;
+  private final Object lock = new Object();
+  private Consumer<String> listener;
+  private String delivered;
+  private WatchService watchService;
+  private volatile boolean closed;
+
+  /**
+   * @param file Configuration file, may be a symlink
+   */
+  public FileConfigBackend(Path file) {
+    this.file = file.toAbsolutePath();
+  }
+
+  @Override
+  public void watch(Consumer<String> listener) {
+    synchronized (lock) {
+      if (this.listener != null) {
+        throw new IllegalStateException("Configuration file " + file + " is already watched");
+      }
+      this.listener = listener;
+      try {
+        // Register before the first read so changes in between are not missed
+        watchService = file.getFileSystem().newWatchService();
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        Thread thread = new Thread(this::watchLoop, "ccentral-config-file");
+        thread.setDaemon(true);
+        thread.start();
+      } catch (IOException e) {
+        LOG.error("Could not watch configuration file {}, changes are not applied: {}", file, e.getMessage());
+      }
+      if (!reload()) {
+        LOG.warn("Configuration file {} is not available, using default values", file);
+      }
+    }
+  }
+
+  private void watchLoop() {
+    while (!closed) {
+      WatchKey key;
+      try {
+        key = watchService.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      // Events tell only that something in the directory changed, including overflows
+      key.pollEvents();
+      boolean valid = key.reset();
+      synchronized (lock) {
+        if (!closed) {
+          reload();
+        }
+      }
+      if (!valid) {
+        LOG.warn("Configuration directory {} is no longer accessible, changes are not applied", file.getParent());
+        return;
+      }
+    }
+  }
+
+  /**
+   * Read the file and deliver it if it changed. Caller must hold the lock.
+   *
+   * @return False if the file could not be read.
+   */
+  private boolean reload() {
+    String data;
+    try {
+      data = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      // Missing while being replaced without an atomic rename, keep the last delivered data
+      LOG.debug("Could not read configuration file {}: {}", file, e.getMessage());
+      return false;
+    }
+    if (!data.equals(delivered)) {
+      delivered = data;
+      try {
+        listener.accept(data);
+      } catch (Exception e) {
+        LOG.warn("Configuration listener threw unexpected exception", e);
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      if (watchService != null) {
+        try {
+          watchService.close();
+        } catch (IOException e) {
+          LOG.warn("Could not close watch of configuration file {}: {}", file, e.getMessage());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,20 @@
+package io.github.slvwolf;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Handle to a float configuration field.
+ */
+public final class FloatConfig extends ConfigHandle {
+
+  FloatConfig(SchemaItem item, AtomicReference<Runnable> beforeRead) {
+    super(item, beforeRead);
+  }
+
+  /**
+   * @return Current value or null if configured value is not a float.
+   */
+  public Float get() {
+    return getValue().getFloat();
+  }
+}
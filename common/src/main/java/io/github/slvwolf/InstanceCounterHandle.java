@@ -0,0 +1,57 @@
+package io.github.slvwolf;
+
+import java.util.Arrays;
+
+/**
+ * Counter handle updating through the instance counter methods of the client, used by clients which do not resolve
+ * counters themselves.
+ */
+final class InstanceCounterHandle implements CounterHandle {
+  private final CCClient client;
+  private final String key;
+  private final String[] groups;
+  private final String fullKey;
+
+  InstanceCounterHandle(CCClient client, String key, String... groups) {
+    this.client = client;
+    this.key = key;
+    this.groups = groups;
+    StringBuilder builder = new StringBuilder(Keys.filter(key));
+    for (String group : groups) {
+      builder.append('.').append(Keys.filter(group));
+    }
+    this.fullKey = builder.toString();
+  }
+
+  @Override
+  public String getKey() {
+    return fullKey;
+  }
+
+  @Override
+  public CounterHandle withGroup(String group) {
+    return withGroups(group);
+  }
+
+  @Override
+  public CounterHandle withGroups(String... groups) {
+    String[] combined = Arrays.copyOf(this.groups, this.groups.length + groups.length);
+    System.arraycopy(groups, 0, combined, this.groups.length, groups.length);
+    return new InstanceCounterHandle(client, key, combined);
+  }
+
+  @Override
+  public void increment() {
+    client.incrementInstanceCounter(key, groups);
+  }
+
+  @Override
+  public void increment(int amount) {
+    client.incrementInstanceCounter(key, amount, groups);
+  }
+
+  @Override
+  public void set(int amount) {
+    client.setInstanceCounter(key, amount, groups);
+  }
+}
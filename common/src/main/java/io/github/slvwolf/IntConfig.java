@@ -0,0 +1,20 @@
+package io.github.slvwolf;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Handle to an int configuration field.
+ */
+public final class IntConfig extends ConfigHandle {
+
+  IntConfig(SchemaItem item, AtomicReference<Runnable> beforeRead) {
+    super(item, beforeRead);
+  }
+
+  /**
+   * @return Current value or null if configured value is not an int.
+   */
+  public Integer get() {
+    return getValue().getInt();
+  }
+}
@@ -0,0 +1,32 @@
+package io.github.slvwolf;
+
+import java.util.regex.Pattern;
+
+/**
+ * Key normalisation shared by all clients.
+ */
+final class Keys {
+  private static final Pattern INVALID_KEY_CHARS = Pattern.compile("[^a-zA-Z0-9_-]");
+
+  private Keys() {
+  }
+
+  /**
+   * Replace spaces with underscores and drop all other characters not allowed in keys.
+   *
+   * @param key Key as given by the user
+   * @return Filtered key, the same instance if it was already valid
+   */
+  static String filter(String key) {
+    for (int i = 0; i < key.length(); i++) {
+      if (!isValidKeyChar(key.charAt(i))) {
+        return INVALID_KEY_CHARS.matcher(key.replace(" ", "_")).replaceAll("");
+      }
+    }
+    return key;
+  }
+
+  private static boolean isValidKeyChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-';
+  }
+}
@@ -0,0 +1,21 @@
+package io.github.slvwolf;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Handle to a list configuration field.
+ */
+public final class ListConfig extends ConfigHandle {
+
+  ListConfig(SchemaItem item, AtomicReference<Runnable> beforeRead) {
+    super(item, beforeRead);
+  }
+
+  /**
+   * @return Current value or null if configured value is not a json list of strings.
+   */
+  public List<String> get() {
+    return getValue().getList();
+  }
+}
@@ -3,8 +3,9 @@ package io.github.slvwolf;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 class SchemaItem {
   public String key;
@@ -14,9 +15,13 @@ class SchemaItem {
   public String defaultValue;
   public String type;
   @JsonIgnore
-  public String configValue;
+  public volatile String configValue;
   @JsonIgnore
-  private final List<ConfigUpdate> callbacks;
+  private final List<ConfigListener> listeners;
+  @JsonIgnore
+  private final Type itemType;
+  @JsonIgnore
+  private final AtomicReference<ConfigValue> value;
 
   public enum Type {
     STRING("string"),
@@ -38,15 +43,65 @@ class SchemaItem {
     this.description = description;
     this.defaultValue = defaultValue;
     this.type = type.value;
+    this.itemType = type;
+    configValue = null;
+    value = new AtomicReference<>(ConfigValue.parse(key, type, defaultValue));
+    listeners = new CopyOnWriteArrayList<>();
+  }
+
+  /**
+   * Item registered again for the key of an earlier item. The value is shared with the earlier item, so handles created
+   * from it read the value of this one. The shared value stays unchanged until {@link #setConfigValue} is called.
+   */
+  SchemaItem(SchemaItem previous, String title, String description, String defaultValue, Type type) {
+    this.key = previous.key;
+    this.title = title;
+    this.description = description;
+    this.defaultValue = defaultValue;
+    this.type = type.value;
+    this.itemType = type;
     configValue = null;
-    callbacks = new LinkedList<>();
+    value = previous.value;
+    listeners = new CopyOnWriteArrayList<>();
+  }
+
+  /**
+   * Set configured value and parse its typed representations. Null falls back to the default value.
+   *
+   * @param configValue Configured value.
+   */
+  public void setConfigValue(String configValue) {
+    this.configValue = configValue;
+    value.set(ConfigValue.parse(key, itemType, configValue == null ? defaultValue : configValue));
+  }
+
+  /**
+   * @return Current configured or default value.
+   */
+  public ConfigValue currentValue() {
+    return value.get();
+  }
+
+  /**
+   * @return Value shared by all items registered for the key.
+   */
+  AtomicReference<ConfigValue> valueReference() {
+    return value;
+  }
+
+  Type itemType() {
+    return itemType;
   }
 
   public void addCallback(ConfigUpdate func) {
-    callbacks.add(func);
+    listeners.add((configKey, oldValue, newValue) -> func.valueChanged(configKey));
+  }
+
+  public void addListener(ConfigListener listener) {
+    listeners.add(listener);
   }
 
-  public List<ConfigUpdate> getCallbacks() {
-    return callbacks;
+  public List<ConfigListener> getListeners() {
+    return listeners;
   }
 }
\ No newline at end of file
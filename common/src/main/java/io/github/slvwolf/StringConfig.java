@@ -0,0 +1,20 @@
+package io.github.slvwolf;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Handle to a string configuration field.
+ */
+public final class StringConfig extends ConfigHandle {
+
+  StringConfig(SchemaItem item, AtomicReference<Runnable> beforeRead) {
+    super(item, beforeRead);
+  }
+
+  /**
+   * @return Current value.
+   */
+  public String get() {
+    return getValue().getString();
+  }
+}
@@ -0,0 +1,54 @@
+package io.github.slvwolf;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency recorder. Use {@link #time()} with try-with-resources to measure a block with nanosecond precision.
+ */
+public interface Timer {
+  /**
+   * Record duration.
+   *
+   * @param duration Duration
+   * @param unit Unit of the duration
+   */
+  void update(long duration, TimeUnit unit);
+
+  /**
+   * Start measuring, the duration is recorded when the context is closed.
+   *
+   * @return Started context
+   */
+  default Context time() {
+    return new Context(this);
+  }
+
+  /**
+   * Running measurement.
+   */
+  final class Context implements AutoCloseable {
+    private final Timer timer;
+    private final long start;
+
+    Context(Timer timer) {
+      this.timer = timer;
+      this.start = System.nanoTime();
+    }
+
+    /**
+     * Record elapsed time.
+     *
+     * @return Elapsed time in nanoseconds
+     */
+    public long stop() {
+      long elapsed = System.nanoTime() - start;
+      timer.update(elapsed, TimeUnit.NANOSECONDS);
+      return elapsed;
+    }
+
+    @Override
+    public void close() {
+      stop();
+    }
+  }
+}
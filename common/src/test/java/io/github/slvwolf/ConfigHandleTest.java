@@ -0,0 +1,43 @@
+package io.github.slvwolf;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ConfigHandleTest {
+  private final AtomicInteger refreshes = new AtomicInteger();
+  private final AtomicReference<Runnable> beforeRead = new AtomicReference<>(refreshes::incrementAndGet);
+
+  /** Handles run the refresh before reads only while one is set */
+  @Test
+  public void refreshBeforeRead() {
+    IntConfig limit = new IntConfig(new SchemaItem("limit", "title", "desc", "1", SchemaItem.Type.INTEGER), beforeRead);
+    assertThat(limit.get(), is(1));
+    assertThat(refreshes.get(), is(1));
+
+    beforeRead.set(null);
+    assertThat(limit.get(), is(1));
+    assertThat(refreshes.get(), is(1));
+  }
+
+  /** Handles of an item registered again read the value of the new item */
+  @Test
+  public void registeredAgain() {
+    SchemaItem first = new SchemaItem("limit", "title", "desc", "1", SchemaItem.Type.INTEGER);
+    first.setConfigValue("5");
+    IntConfig limit = new IntConfig(first, beforeRead);
+
+    SchemaItem second = new SchemaItem(first, "title", "desc", "2", SchemaItem.Type.INTEGER);
+    assertThat(limit.get(), is(5));
+    second.setConfigValue(null);
+    assertThat(limit.get(), is(2));
+    assertThat(limit.getKey(), is("limit"));
+    second.setConfigValue("7");
+    assertThat(new IntConfig(second, beforeRead).get(), is(7));
+    assertThat(limit.get(), is(7));
+  }
+}
@@ -0,0 +1,175 @@
+package io.github.slvwolf;
+
+import org.junit.Test;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class CounterTest {
+  private final AtomicLong millis = new AtomicLong(1000);
+  private final long[] windows = new long[Counter.WINDOWS];
+
+  /** Completed windows are reported until acknowledged, the current window is not reported */
+  @Test
+  public void completedWindows() {
+    Counter counter = new Counter(millis::get, 10);
+    counter.increment(3);
+    millis.set(1010);
+    counter.increment(5);
+    millis.set(1020);
+
+    assertThat(counter.completed(102, windows), is(2));
+    assertThat(windows[0], is(3L));
+    assertThat(windows[1], is(5L));
+    assertThat(counter.completed(102, windows), is(2));
+    counter.acknowledge(102);
+    assertThat(counter.completed(102, windows), is(0));
+  }
+
+  /** First upload reports only windows since the counter was created */
+  @Test
+  public void firstUpload() {
+    Counter counter = new Counter(millis::get, 10);
+    millis.set(1010);
+
+    assertThat(counter.completed(101, windows), is(1));
+    assertThat(windows[0], is(0L));
+  }
+
+  /** Set replaces the value of the current window, a set racing with an acknowledgement is reported once */
+  @Test
+  public void set() {
+    AtomicLong time = new AtomicLong(1000);
+    Queue<Runnable> beforeReturn = new ConcurrentLinkedQueue<>();
+    Counter counter = new Counter(() -> {
+      long now = time.get();
+      Runnable hook = beforeReturn.poll();
+      if (hook != null) {
+        hook.run();
+      }
+      return now;
+    }, 10);
+    counter.set(3);
+    counter.set(4);
+    time.set(1010);
+    assertThat(counter.completed(101, windows), is(1));
+    assertThat(windows[0], is(4L));
+
+    // Acknowledged after the set has read the clock, the difference to the uploaded value goes to the next window
+    time.set(1009);
+    beforeReturn.add(() -> {
+      time.set(1010);
+      counter.acknowledge(101);
+    });
+    counter.set(7);
+    time.set(1020);
+    assertThat(counter.completed(102, windows), is(1));
+    assertThat(windows[0], is(3L));
+    counter.acknowledge(102);
+    counter.set(2);
+    time.set(1030);
+    assertThat(counter.completed(103, windows), is(1));
+    assertThat(windows[0], is(2L));
+  }
+
+  /** Windows older than the ring are dropped */
+  @Test
+  public void oldWindowsDropped() {
+    Counter counter = new Counter(millis::get, 10);
+    counter.increment(1);
+    millis.set(1000 + 10 * Counter.WINDOWS);
+
+    assertThat(counter.completed(counter.window(millis.get()), windows), is(Counter.WINDOWS - 1));
+    assertThat(windows[0], is(0L));
+  }
+
+  /** Increments racing with uploads and acknowledgements are reported exactly once */
+  @Test
+  public void acknowledgeRace() throws Exception {
+    // Upload is acknowledged after the increment has read the clock but before it has added
+    AtomicLong time = new AtomicLong(1000);
+    Queue<Runnable> beforeReturn = new ConcurrentLinkedQueue<>();
+    Counter interleaved = new Counter(() -> {
+      long now = time.get();
+      Runnable hook = beforeReturn.poll();
+      if (hook != null) {
+        hook.run();
+      }
+      return now;
+    }, 10);
+    interleaved.increment(1);
+    time.set(1010);
+    assertThat(interleaved.completed(101, windows), is(1));
+    assertThat(windows[0], is(1L));
+    time.set(1009);
+    beforeReturn.add(() -> {
+      time.set(1010);
+      interleaved.acknowledge(101);
+    });
+    interleaved.increment(2);
+    time.set(1020);
+    assertThat(interleaved.completed(102, windows), is(1));
+    assertThat(windows[0], is(2L));
+
+    millis.set(10);
+    Counter counter = new Counter(millis::get, 10);
+    AtomicBoolean running = new AtomicBoolean(true);
+    LongAdder incremented = new LongAdder();
+    Thread[] threads = new Thread[4];
+    AtomicLongArray progress = new AtomicLongArray(threads.length);
+    for (int i = 0; i < threads.length; i++) {
+      int index = i;
+      threads[i] = new Thread(() -> {
+        while (running.get()) {
+          counter.increment(1);
+          incremented.increment();
+          progress.incrementAndGet(index);
+        }
+      });
+      threads[i].start();
+    }
+    long reported = 0;
+    long[] seen = new long[threads.length];
+    for (int i = 0; i < 2000; i++) {
+      reported += upload(counter);
+      if (i % 8 != 0) {
+        continue;
+      }
+      // Every writer finishes an increment started after this upload, a preempted writer falls behind by a few
+      // windows instead of the whole ring
+      for (int thread = 0; thread < threads.length; thread++) {
+        while (progress.get(thread) < seen[thread] + 2) {
+          Thread.yield();
+        }
+        seen[thread] = progress.get(thread);
+      }
+    }
+    running.set(false);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (int i = 0; i < 2; i++) {
+      reported += upload(counter);
+    }
+    assertThat(reported, is(incremented.sum()));
+  }
+
+  /** Move to the next window, report and acknowledge completed windows */
+  private long upload(Counter counter) {
+    long window = counter.window(millis.addAndGet(10));
+    int count = counter.completed(window, windows);
+    long sum = 0;
+    for (int i = 0; i < count; i++) {
+      sum += windows[i];
+    }
+    counter.acknowledge(window);
+    return sum;
+  }
+}
@@ -0,0 +1,55 @@
+package io.github.slvwolf;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads for background refresh, configuration watches and callbacks. Uses daemon platform threads, the Java 21
+ * version of this class in the multi-release jar uses virtual threads instead.
+ */
+final class BackgroundThreads {
+  private static final int POOL_SIZE = 2;
+  private static final ExecutorService EXECUTOR = createExecutor();
+
+  private BackgroundThreads() {
+  }
+
+  /**
+   * @return True if threads created here are virtual threads.
+   */
+  static boolean isVirtual() {
+    return false;
+  }
+
+  /**
+   * @param name Thread name, threads after the first get a sequence number.
+   * @return Factory for background threads.
+   */
+  static ThreadFactory factory(String name) {
+    AtomicInteger created = new AtomicInteger();
+    return runnable -> {
+      int sequence = created.getAndIncrement();
+      Thread thread = new Thread(runnable, sequence == 0 ? name : name + "-" + sequence);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * @return Shared executor for short tasks that may block on Etcd or the local disk.
+   */
+  static ExecutorService executor() {
+    return EXECUTOR;
+  }
+
+  private static ExecutorService createExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), factory("ccentral-io"));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+}
@@ -1,51 +1,103 @@
 package io.github.slvwolf;
 
-import com.codahale.metrics.ExponentiallyDecayingReservoir;
-import com.codahale.metrics.Histogram;
-import com.codahale.metrics.Snapshot;
-import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.codahale.metrics.MetricRegistry;
 import mousio.etcd4j.EtcdClient;
-import mousio.etcd4j.transport.EtcdNettyClient;
-import mousio.etcd4j.transport.EtcdNettyConfig;
+import mousio.etcd4j.responses.EtcdAuthenticationException;
+import mousio.etcd4j.responses.EtcdErrorCode;
+import mousio.etcd4j.responses.EtcdException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Clock;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class CCEtcdClient implements CCClient {
 
   private static final String CLIENT_VERSION = "java_etcd-0.5.2";
   private static final int METRIC_INTERVAL = 40;
   private int configCheckInterval = 40;
+  private int metricInterval = METRIC_INTERVAL;
+  private int heartbeatInterval = EtcdAccess.INSTANCE_TTL / 3;
   private static final ObjectMapper MAPPER = new ObjectMapper();
   private static final String API_VERSION = "1";
+  private static final int WATCH_TIMEOUT = 60;
+  private static final long SCHEMA_DEBOUNCE_MILLIS = 1000;
+  private static final long METRIC_ALIGN_MILLIS = 100;
+  private static final int COUNTER_CARDINALITY_LIMIT = 1000;
   private static Logger LOG = LoggerFactory.getLogger(CCEtcdClient.class);
-  private final EtcdAccess client;
+  private final EtcdOperations client;
   private Clock clock;
   private int startedEpoch;
-  private HashMap<String, SchemaItem> schema;
-  private HashMap<String, Object> clientData;
-  private HashMap<String, Counter> counters;
-  private HashMap<String, Histogram> histograms;
+  private Map<String, SchemaItem> schema;
+  private volatile ConfigSnapshot snapshot;
+  private final Map<String, String> knownValues = new HashMap<>();
+  private volatile ConfigCache configCache;
+  private volatile long configIndex;
+  private long snapshotVersion;
+  private Map<String, Object> clientData;
+  private ConcurrentHashMap<String, Counter> counters;
+  private ConcurrentHashMap<String, ResolvedCounter> counterHandles;
+  private final AtomicInteger cachedCounterHandles = new AtomicInteger();
+  private ConcurrentHashMap<String, CounterGroups> counterGroups;
+  private volatile int counterCardinalityLimit = COUNTER_CARDINALITY_LIMIT;
+  private final Map<String, Integer> counterCardinalityLimits = new ConcurrentHashMap<>();
+  private ConcurrentHashMap<String, IntervalRecorder> histograms;
   private String clientId;
-  private long lastConfigCheck;
-  private long lastMetricUpload;
+  private volatile long lastConfigCheck;
+  private volatile long lastMetricUpload;
+  private volatile long lastHeartbeat;
+  private final Object refreshLock = new Object();
+  private List<Runnable> pendingDispatches = new ArrayList<>();
+  private volatile ScheduledExecutorService scheduler;
+  /** Refresh run by configuration handles before each read, empty while background refresh is running */
+  private final AtomicReference<Runnable> handleRefresh = new AtomicReference<>(this::refreshIfDue);
+  private boolean configWatch;
+  private volatile ConfigWatcher watcher;
+  private volatile DeltaTracker deltaTracker;
+  private final ClientDataWriter clientDataWriter = new ClientDataWriter();
   private static int ETCDmaxFrameSize = 1024 * 200;
+  private EtcdClient sharedTransport;
+  private volatile ClientMetrics metrics = new ClientMetrics(new MetricRegistry(), false);
+  private final CallbackDispatcher callbackDispatcher = new CallbackDispatcher(() -> metrics);
+  private final CircuitBreaker breaker = new CircuitBreaker(() -> clock.millis());
+  private volatile Executor backgroundExecutor = BackgroundThreads.executor();
+  private volatile long schemaDue;
+  private final SchemaPublisher schemaPublisher;
+  private final ServiceInfoBuffer serviceInfo =
+      new ServiceInfoBuffer(TimeUnit.SECONDS.toMillis(EtcdAccess.SERVICE_INFO_TTL) / 2);
 
   public CCEtcdClient(EtcdAccess client) {
+    this((EtcdOperations) client);
+  }
+
+  /**
+   * @param client Etcd backend, closed when this client is closed.
+   */
+  CCEtcdClient(EtcdOperations client) {
     try {
       init();
       this.client = client;
+      this.schemaPublisher = new SchemaPublisher(client);
+      client.setMetrics(metrics);
       client.setClientId(this.getClientId());
     } catch (Throwable e) {
       LOG.error("Could not initialise using provided EtcdClient", e);
@@ -54,21 +106,22 @@ public class CCEtcdClient implements CCClient {
   }
 
   public CCEtcdClient(String serviceId, URI[] hosts) {
-    // TODO: Instead of throwing exception library should work in a dummy mode instead.
+    // Use CCentral.initWithEtcdHost or CCentral.initInMemory to get an in-memory client instead
     if (hosts == null || hosts.length == 0) {
       LOG.error("No hosts provided or hosts is null. Can not initialize CCentral.");
       throw new RuntimeException("No hosts provided or hosts is null. Can not initialize CCentral.");
     }
-    for (URI host : hosts) {
-      LOG.info("Creating ETCD connection: {}", host.toASCIIString());
-    }
     try {
-      EtcdNettyConfig config = new EtcdNettyConfig()
-          .setMaxFrameSize(ETCDmaxFrameSize);
-      EtcdClient cli = new EtcdClient(new EtcdNettyClient(config, hosts));
+      EtcdClient cli = EtcdTransports.acquire(hosts, ETCDmaxFrameSize);
+      sharedTransport = cli;
       init();
       this.client = new EtcdAccess(cli, serviceId, this.getClientId());
+      this.schemaPublisher = new SchemaPublisher(this.client);
+      this.client.setMetrics(metrics);
     } catch (Throwable e) {
+      if (sharedTransport != null) {
+        EtcdTransports.release(sharedTransport);
+      }
       LOG.error("Could not initialise EtcdClient", e);
       throw e;
     }
@@ -86,6 +139,13 @@ public class CCEtcdClient implements CCClient {
     this.clock = clock;
   }
 
+  /**
+   * @param executor Executor for short background tasks, such as configuration cache writes and recovery probes
+   */
+  void setBackgroundExecutor(Executor executor) {
+    this.backgroundExecutor = executor;
+  }
+
   @Override
   public String getApiVersion() {
     return API_VERSION;
@@ -93,11 +153,41 @@ public class CCEtcdClient implements CCClient {
 
   @Override
   public void addCallback(String configuration, ConfigUpdate func) throws UnknownConfigException {
+    getSchemaItem(configuration).addCallback(func);
+  }
+
+  @Override
+  public void addListener(String configuration, ConfigListener listener) throws UnknownConfigException {
+    getSchemaItem(configuration).addListener(listener);
+  }
+
+  private SchemaItem getSchemaItem(String configuration) throws UnknownConfigException {
     SchemaItem item = schema.get(configuration);
     if (item == null) {
       throw new UnknownConfigException("Configuration option for '" + configuration + "' is missing");
     }
-    item.addCallback(func);
+    return item;
+  }
+
+  /**
+   * Run configuration callbacks and listeners on the given executor instead of the thread applying the configuration.
+   * Changes of one key are delivered in order and changes arriving while an earlier one is waiting are merged, so
+   * listeners see only the latest value. By default callbacks of the client run one at a time on its own background
+   * thread.
+   *
+   * @param executor Executor for callbacks
+   */
+  public void setCallbackExecutor(Executor executor) {
+    callbackDispatcher.setExecutor(executor);
+  }
+
+  /**
+   * Callbacks running longer than this are logged and counted in the "ccentral.callback.slow" metric.
+   *
+   * @param millis Threshold in milliseconds, defaults to one second
+   */
+  public void setSlowCallbackThreshold(long millis) {
+    callbackDispatcher.setSlowThreshold(millis);
   }
 
   @Override
@@ -105,20 +195,17 @@ public class CCEtcdClient implements CCClient {
     return clientId;
   }
 
-  private String filterKey(String key) {
-    key = key.replace(" ", "_");
-    String validKeyChars = "[^a-zA-Z0-9_-]";
-    return key.replaceAll(validKeyChars, "");
-  }
-
   private void init() {
     LOG.info("Initializing");
     clock = Clock.systemUTC();
     clientId = UUID.randomUUID().toString();
     this.startedEpoch = (int) (clock.millis() / 1000);
-    schema = new HashMap<>();
-    counters = new HashMap<>();
-    histograms = new HashMap<>();
+    schema = new ConcurrentHashMap<>();
+    snapshot = new ConfigSnapshot(0, new HashMap<>());
+    counters = new ConcurrentHashMap<>();
+    counterHandles = new ConcurrentHashMap<>();
+    counterGroups = new ConcurrentHashMap<>();
+    histograms = new ConcurrentHashMap<>();
     clientData = new HashMap<>();
     addIntField("v", "Version", "Schema version for tracking instances", 0);
     lastConfigCheck = 0;
@@ -127,312 +214,1004 @@ public class CCEtcdClient implements CCClient {
 
   @Override
   public void addField(String key, String title, String description, String defaultValue) {
-    addFieldType(key, title, description, defaultValue, SchemaItem.Type.STRING);
+    addStringConfig(key, title, description, defaultValue);
   }
 
   @Override
   public void addIntField(String key, String title, String description, int defaultValue) {
-    addFieldType(key, title, description, Integer.toString(defaultValue), SchemaItem.Type.INTEGER);
+    addIntConfig(key, title, description, defaultValue);
   }
 
   @Override
   public void addFloatField(String key, String title, String description, float defaultValue) {
-    addFieldType(key, title, description, Float.toString(defaultValue), SchemaItem.Type.FLOAT);
+    addFloatConfig(key, title, description, defaultValue);
   }
 
   @Override
   public void addPasswordField(String key, String title, String description, String defaultValue) {
-    addFieldType(key, title, description, defaultValue, SchemaItem.Type.PASSWORD);
+    addPasswordConfig(key, title, description, defaultValue);
   }
 
   @Override
   public void addListField(String key, String title, String description, List<String> defaultValue) {
+    addListConfig(key, title, description, defaultValue);
+  }
+
+  @Override
+  public void addBooleanField(String key, String title, String description, boolean defaultValue) {
+    addBooleanConfig(key, title, description, defaultValue);
+  }
+
+  @Override
+  public StringConfig addStringConfig(String key, String title, String description, String defaultValue) {
+    return new StringConfig(addFieldType(key, title, description, defaultValue, SchemaItem.Type.STRING),
+        handleRefresh);
+  }
+
+  @Override
+  public IntConfig addIntConfig(String key, String title, String description, int defaultValue) {
+    return new IntConfig(addFieldType(key, title, description, Integer.toString(defaultValue),
+        SchemaItem.Type.INTEGER), handleRefresh);
+  }
+
+  @Override
+  public FloatConfig addFloatConfig(String key, String title, String description, float defaultValue) {
+    return new FloatConfig(addFieldType(key, title, description, Float.toString(defaultValue),
+        SchemaItem.Type.FLOAT), handleRefresh);
+  }
+
+  @Override
+  public StringConfig addPasswordConfig(String key, String title, String description, String defaultValue) {
+    return new StringConfig(addFieldType(key, title, description, defaultValue, SchemaItem.Type.PASSWORD),
+        handleRefresh);
+  }
+
+  @Override
+  public ListConfig addListConfig(String key, String title, String description, List<String> defaultValue) {
+    String value = null;
     try {
-      addFieldType(key, title, description, MAPPER.writeValueAsString(defaultValue), SchemaItem.Type.LIST);
+      value = MAPPER.writeValueAsString(defaultValue);
     } catch (JsonProcessingException e) {
       LOG.error("Could not register list type for key {}: ", key, e);
     }
+    return new ListConfig(addFieldType(key, title, description, value, SchemaItem.Type.LIST), handleRefresh);
   }
 
   @Override
-  public void addBooleanField(String key, String title, String description, boolean defaultValue) {
+  public BooleanConfig addBooleanConfig(String key, String title, String description, boolean defaultValue) {
     String value;
     if (defaultValue) {
       value = "1";
     } else {
       value = "0";
     }
-    addFieldType(key, title, description, value, SchemaItem.Type.BOOLEAN);
+    return new BooleanConfig(addFieldType(key, title, description, value, SchemaItem.Type.BOOLEAN), handleRefresh);
   }
 
   @Override
   public List<String> getConfigList(String key) {
-    try {
-      String value = getConfigString(key);
-      if (value == null) {
-        return null;
-      }
-      return MAPPER.readValue(value, new TypeReference<List<String>>() {
-      });
-    } catch (JsonParseException e) {
-      LOG.warn("Could not parse value of configuration key '{}'. Value needs to be a valid json list of strings.", key);
-    } catch (IOException e) {
-      LOG.warn("Could not parse value of configuration key '{}'.", key, e);
-    }
-    return null;
+    ConfigValue value = getConfigValue(key);
+    return value == null ? null : value.getList();
   }
 
-  private void addFieldType(String key, String title, String description, String defaultValue, SchemaItem.Type type) {
-    key = filterKey(key);
-    schema.put(key, new SchemaItem(key, title, description, defaultValue, type));
+  private SchemaItem addFieldType(String key, String title, String description, String defaultValue,
+                                  SchemaItem.Type type) {
+    key = Keys.filter(key);
+    SchemaItem item;
+    synchronized (refreshLock) {
+      // Items registered again share the value of the earlier item, handles created from it read the new item
+      SchemaItem previous = schema.get(key);
+      item = previous == null ? new SchemaItem(key, title, description, defaultValue, type)
+          : new SchemaItem(previous, title, description, defaultValue, type);
+      String knownValue = knownValues.get(key);
+      if (knownValue != null || previous != null) {
+        item.setConfigValue(knownValue);
+      }
+      schema.put(key, item);
+      publishSnapshot();
+    }
     if (lastConfigCheck > 0) {
       LOG.warn("Schema was updated after refresh. This might result in some abnormal behavior on "
               + "administration UI and degrades the performance. Before setting any stats or instance "
               + "variables always make sure all configurations have been already defined. As a remedy "
-              + "will now resend the updated schema.");
-      sendSchema();
-      pullConfigData();
+              + "will resend the updated schema once no more fields are added.");
+      synchronized (refreshLock) {
+        boolean scheduled = schemaDue != 0;
+        scheduleSchemaSend(SCHEMA_DEBOUNCE_MILLIS);
+        ScheduledExecutorService executor = scheduler;
+        if (!scheduled && executor != null) {
+          executor.schedule(() -> runInBackground(() -> {
+            backgroundSchemaSend();
+            backgroundConfigFetch();
+          }), SCHEMA_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+      }
     }
+    return item;
   }
 
   @Override
   public String getConfig(String key) throws UnknownConfigException {
-    refresh();
-    key = filterKey(key);
-    SchemaItem item = schema.get(key);
-    if (item == null) {
+    refreshIfDue();
+    key = Keys.filter(key);
+    ConfigValue value = snapshot.getValue(key);
+    if (value == null) {
       throw new UnknownConfigException(key);
     }
-    if (item.configValue == null) {
-      return item.defaultValue;
-    }
-    return item.configValue;
+    return value.getString();
   }
 
   @Override
   public Boolean getConfigBool(String key) {
-    Integer value = getConfigInt(key);
-    if (value == null) {
-      return null;
-    }
-    return value == 1;
+    ConfigValue value = getConfigValue(key);
+    return value == null ? null : value.getBool();
   }
 
   @Override
   public Integer getConfigInt(String key) {
-    try {
-      return Integer.valueOf(getConfigString(key));
-    } catch (NumberFormatException e) {
-      LOG.warn("Could not convert configuration {} value '{}' to int.",
-              key, getConfigString(key));
-      return null;
-    }
+    ConfigValue value = getConfigValue(key);
+    return value == null ? null : value.getInt();
   }
 
   @Override
   public Float getConfigFloat(String key) {
-    try {
-      return Float.valueOf(getConfigString(key));
-    } catch (NumberFormatException e) {
-      LOG.warn("Could not convert configuration {} value '{}' to float.",
-              key, getConfigString(key));
-      return null;
-    }
+    ConfigValue value = getConfigValue(key);
+    return value == null ? null : value.getFloat();
   }
 
   @Override
   public String getConfigString(String key) {
-    try {
-      return getConfig(key);
-    } catch (UnknownConfigException e) {
+    ConfigValue value = getConfigValue(key);
+    return value == null ? null : value.getString();
+  }
+
+  @Override
+  public ConfigSnapshot getConfigSnapshot() {
+    refreshIfDue();
+    return snapshot;
+  }
+
+  private ConfigValue getConfigValue(String key) {
+    refreshIfDue();
+    ConfigValue value = snapshot.getValue(Keys.filter(key));
+    if (value == null) {
       LOG.warn("Configuration {} was requested before initialized. Always introduce all " +
               "configurations with addField method before using them.", key);
-      return null;
     }
+    return value;
+  }
+
+  /**
+   * Build and publish new immutable snapshot from the current schema. Caller must hold the refresh lock.
+   */
+  private void publishSnapshot() {
+    Map<String, ConfigValue> values = new HashMap<>();
+    for (SchemaItem item : schema.values()) {
+      values.put(item.key, item.currentValue());
+    }
+    snapshot = new ConfigSnapshot(++snapshotVersion, values);
   }
 
   @Override
   public void addInstanceInfo(String key, String data) {
-    refresh();
-    key = filterKey(key);
-    clientData.put("k_" + key, data);
+    refreshIfDue();
+    key = Keys.filter(key);
+    synchronized (clientData) {
+      clientData.put("k_" + key, data);
+    }
   }
 
   @Override
   public void addServiceInfo(String key, String data) {
-    refresh();
-    key = filterKey(key);
+    serviceInfo.put(Keys.filter(key), data);
+    refreshIfDue();
+  }
+
+  @Override
+  public void refresh() {
+    if (!isRefreshDue()) {
+      return;
+    }
+    synchronized (refreshLock) {
+      boolean pullConfig = lastConfigCheck < (clock.millis() - configCheckInterval * 1000);
+      if (lastConfigCheck == 0) {
+        LOG.info("First refresh, sending Schema");
+        sendSchema();
+        LOG.debug("Schema updated");
+      } else if (isSchemaDue()) {
+        sendSchema();
+        pullConfig = true;
+      }
+      if (pullConfig) {
+        LOG.debug("Checking for new configuration");
+        lastConfigCheck = clock.millis();
+        pullConfigData();
+      }
+      long now = clock.millis();
+      if (isMetricUploadDue(now)) {
+        LOG.debug("Uploading metrics");
+        lastMetricUpload = now;
+        sendClientData();
+        flushServiceInfo();
+      } else if (isHeartbeatDue(now)) {
+        lastHeartbeat = now;
+        sendHeartbeat();
+      }
+    }
+    dispatchChanges();
+  }
+
+  private boolean isRefreshDue() {
+    long now = clock.millis();
+    return lastConfigCheck == 0
+        || lastConfigCheck < (now - configCheckInterval * 1000)
+        || isMetricUploadDue(now)
+        || isHeartbeatDue(now)
+        || isSchemaDue();
+  }
+
+  /**
+   * Heartbeats keep the client data alive between metric uploads, they are only sent after the first upload.
+   */
+  private boolean isHeartbeatDue(long now) {
+    return heartbeatInterval > 0 && lastMetricUpload != 0 && now - lastHeartbeat >= heartbeatInterval * 1000L;
+  }
+
+  /**
+   * Metrics are uploaded once per window of the metric interval so that every upload completes counter windows.
+   */
+  private boolean isMetricUploadDue(long now) {
+    long window = metricWindowMillis();
+    return metricInterval <= 0 || Math.floorDiv(now, window) != Math.floorDiv(lastMetricUpload, window);
+  }
+
+  private long metricWindowMillis() {
+    return Math.max(1, metricInterval) * 1000L;
+  }
+
+  private boolean isSchemaDue() {
+    long due = schemaDue;
+    return due != 0 && clock.millis() >= due && breaker.isClosed();
+  }
+
+  /**
+   * Request schema to be sent after the given delay. Later requests before that are merged into the same send.
+   */
+  private void scheduleSchemaSend(long delayMillis) {
+    if (schemaDue == 0) {
+      schemaDue = clock.millis() + delayMillis;
+    }
+  }
+
+  /**
+   * Refresh on the calling thread unless background refresh owns the etcd I/O.
+   */
+  private void refreshIfDue() {
+    if (scheduler == null) {
+      refresh();
+    }
+  }
+
+  /**
+   * Start background refresh. Schema send, configuration pull and metric upload are then done by a dedicated daemon
+   * thread using configured intervals and get, increment and add methods only touch in-memory state. Etcd requests
+   * are pipelined with the asynchronous {@link EtcdOperations} methods so no thread waits for Etcd. Calling this when
+   * background refresh is already running has no effect.
+   */
+  public synchronized void startBackgroundRefresh() {
+    if (scheduler == null) {
+      startBackgroundRefresh(Executors.newSingleThreadScheduledExecutor(
+          BackgroundThreads.factory("ccentral-refresh-" + clientId)));
+    }
+  }
+
+  /**
+   * Start background refresh on the given executor. The executor is shut down when background refresh is stopped.
+   */
+  synchronized void startBackgroundRefresh(ScheduledExecutorService executor) {
+    if (scheduler != null) {
+      return;
+    }
+    LOG.info("Starting background refresh");
+    long configDelay = Math.max(1, configCheckInterval);
+    long metricWindow = metricWindowMillis();
+    // Align uploads just after window boundaries, the current window of counters is then already completed
+    long metricDelay = metricWindow - Math.floorMod(clock.millis(), metricWindow) + METRIC_ALIGN_MILLIS;
+    executor.execute(() -> runInBackground(this::backgroundSchemaSend));
+    if (configWatch) {
+      watcher = new ConfigWatcher(client, this::applyConfigData, WATCH_TIMEOUT, configIndex);
+      watcher.start("ccentral-watch-" + clientId);
+    }
+    executor.scheduleWithFixedDelay(() -> runInBackground(this::backgroundConfigPull),
+        0, configDelay, TimeUnit.SECONDS);
+    if (heartbeatInterval > 0) {
+      executor.scheduleWithFixedDelay(() -> runInBackground(this::backgroundHeartbeat),
+          heartbeatInterval, heartbeatInterval, TimeUnit.SECONDS);
+    }
+    executor.execute(() -> runInBackground(this::backgroundMetricUpload));
+    executor.scheduleAtFixedRate(() -> runInBackground(this::backgroundMetricUpload),
+        metricDelay, metricWindow, TimeUnit.MILLISECONDS);
+    scheduler = executor;
+    handleRefresh.set(null);
+  }
+
+  /**
+   * Stop background refresh and wait for the running task to finish. After this refresh is again done on the calling
+   * thread.
+   */
+  public synchronized void stopBackgroundRefresh() {
+    ScheduledExecutorService executor = scheduler;
+    if (executor == null) {
+      return;
+    }
+    LOG.info("Stopping background refresh");
+    scheduler = null;
+    handleRefresh.set(this::refreshIfDue);
+    if (watcher != null) {
+      watcher.stop();
+      watcher = null;
+    }
+    executor.shutdownNow();
     try {
-      client.sendServiceInfo(key, data);
-    } catch (Exception e) {
-      LOG.error("Failed to add service info: " + e.getMessage(), e);
+      if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+        LOG.warn("Background refresh did not stop in time");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
 
+  /**
+   * Stop background refresh and release the Etcd connection. Connections created from hosts are shared between
+   * clients with the same hosts and closed when the last client using them is closed. Connections given by the user
+   * are left open.
+   */
   @Override
-  public void refresh() {
-    if (lastConfigCheck == 0) {
-      LOG.info("First refresh, sending Schema");
-      sendSchema();
-      LOG.debug("Schema updated");
+  public synchronized void close() {
+    stopBackgroundRefresh();
+    callbackDispatcher.close();
+    client.close();
+    if (sharedTransport != null) {
+      EtcdTransports.release(sharedTransport);
+      sharedTransport = null;
+    }
+  }
+
+  public boolean isBackgroundRefresh() {
+    return scheduler != null;
+  }
+
+  private void backgroundSchemaSend() {
+    String schemaJson = schemaJson();
+    if (schemaJson == null) {
+      return;
+    }
+    if (!breaker.allowRequest()) {
+      scheduleSchemaSend(0);
+      return;
+    }
+    schemaDue = 0;
+    long start = System.nanoTime();
+    schemaPublisher.publishAsync(schemaJson).whenComplete((ignored, error) -> {
+      metrics.time(ClientMetrics.REFRESH_SCHEMA, start);
+      if (error != null) {
+        scheduleSchemaSend(0);
+        handleFailure("send schema", error);
+      } else {
+        breaker.onSuccess();
+      }
+    });
+  }
+
+  private void backgroundConfigPull() {
+    if (isSchemaDue()) {
+      backgroundSchemaSend();
+    }
+    ConfigWatcher currentWatcher = watcher;
+    if (currentWatcher != null && currentWatcher.isHealthy()) {
+      LOG.trace("Configuration watch is healthy, skipping poll");
+      return;
+    }
+    backgroundConfigFetch();
+  }
+
+  private void backgroundConfigFetch() {
+    ScheduledExecutorService executor = scheduler;
+    if (executor == null) {
+      return;
+    }
+    fetchConfigAsync(executor);
+  }
+
+  /**
+   * Pull configuration without blocking. Parsing and callbacks are run on the given executor to keep them off the
+   * event loop.
+   */
+  private void fetchConfigAsync(Executor executor) {
+    LOG.debug("Checking configuration changes");
+    lastConfigCheck = clock.millis();
+    if (!breaker.allowRequest()) {
+      return;
+    }
+    long start = System.nanoTime();
+    client.fetchConfigVersionedAsync().whenCompleteAsync((value, error) -> {
+      if (error != null) {
+        handleFailure("pull configuration data", error);
+      } else {
+        breaker.onSuccess();
+        applyConfigData(value);
+      }
+      metrics.time(ClientMetrics.REFRESH_CONFIG, start);
+    }, executor);
+  }
+
+  private void backgroundMetricUpload() {
+    lastMetricUpload = clock.millis();
+    flushServiceInfo();
+    uploadClientDataAsync();
+  }
+
+  private void backgroundHeartbeat() {
+    long now = clock.millis();
+    if (isHeartbeatDue(now)) {
+      lastHeartbeat = now;
+      sendHeartbeatAsync();
+    }
+  }
+
+  private void sendHeartbeat() {
+    if (!breaker.isClosed()) {
+      sendHeartbeatAsync();
+      return;
     }
-    if (lastConfigCheck < (clock.millis() - configCheckInterval * 1000)) {
-      LOG.debug("Checking for new configuration");
-      lastConfigCheck = clock.millis();
-      pullConfigData();
+    LOG.debug("Sending heartbeat");
+    try {
+      client.heartbeat();
+      breaker.onSuccess();
+    } catch (Exception e) {
+      heartbeatFailed(e, this::sendClientData);
     }
-    if (lastMetricUpload < (clock.millis() - METRIC_INTERVAL * 1000)) {
-      LOG.debug("Uploading metrics");
-      lastMetricUpload = clock.millis();
-      sendClientData();
+  }
+
+  private void sendHeartbeatAsync() {
+    if (!breaker.allowRequest()) {
+      return;
     }
+    client.heartbeatAsync().whenComplete((ignored, error) -> {
+      if (error == null) {
+        breaker.onSuccess();
+      } else {
+        heartbeatFailed(error, this::uploadClientDataAsync);
+      }
+    });
   }
 
-  private Counter getCounter(String key, String... groups) {
-    if (groups.length > 0) {
-      StringBuilder b = new StringBuilder(filterKey(key));
-      for (String group : groups) {
-        b.append(".");
-        b.append(filterKey(group));
+  /**
+   * Upload full client data again if it has expired, other failures are handled like failed requests.
+   */
+  private void heartbeatFailed(Throwable error, Runnable upload) {
+    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    if (cause instanceof EtcdException && ((EtcdException) cause).isErrorCode(EtcdErrorCode.KeyNotFound)) {
+      breaker.onSuccess();
+      LOG.info("Client data has expired, uploading it again");
+      DeltaTracker tracker = deltaTracker;
+      if (tracker != null) {
+        tracker.reset();
       }
-      key = b.toString();
+      upload.run();
+    } else {
+      handleFailure("send heartbeat", error);
+    }
+  }
+
+  private void uploadClientDataAsync() {
+    long start = System.nanoTime();
+    DeltaTracker tracker = deltaTracker;
+    long now = clock.millis();
+    long sequence;
+    boolean delta;
+    String json;
+    synchronized (clientData) {
+      sequence = tracker == null ? 0 : tracker.begin();
+      delta = isDelta(tracker, now);
+      json = buildClientData(tracker, now);
+    }
+    if (json == null || !breaker.allowRequest()) {
+      return;
+    }
+    LOG.debug("Sending client data");
+    (delta ? client.sendClientDeltaAsync(json) : client.sendClientInfoAsync(json)).whenComplete((ignored, error) -> {
+      metrics.time(ClientMetrics.REFRESH_METRICS, start);
+      if (error != null) {
+        handleFailure("send client data", error);
+        return;
+      }
+      breaker.onSuccess();
+      acknowledgeMetrics(now);
+      if (tracker != null) {
+        tracker.uploaded(sequence);
+      }
+    });
+  }
+
+  /**
+   * Write pending service info without waiting for the results. Etcd v2 has no multi key writes, so the batch is sent
+   * as concurrent requests.
+   */
+  private void flushServiceInfo() {
+    if (serviceInfo.isEmpty() || !breaker.isClosed()) {
+      return;
+    }
+    Map<String, String> batch = serviceInfo.drain(clock.millis());
+    if (!batch.isEmpty()) {
+      LOG.debug("Sending {} service info values", batch.size());
+    }
+    for (Map.Entry<String, String> entry : batch.entrySet()) {
+      String key = entry.getKey();
+      String value = entry.getValue();
+      client.sendServiceInfoAsync(key, value).whenComplete((ignored, error) -> {
+        if (error != null) {
+          handleFailure("add service info", error);
+          serviceInfo.failed(key, value);
+        } else {
+          breaker.onSuccess();
+          serviceInfo.written(key, value, clock.millis());
+        }
+      });
+    }
+  }
+
+  private static int utf8Length(String value) {
+    return value.getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  /**
+   * Log failed Etcd request and update the circuit breaker. Errors returned by Etcd mean the connection works, only
+   * other failures open the breaker. While the breaker is open failures are logged without stack traces.
+   */
+  private void handleFailure(String operation, Throwable error) {
+    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    if (cause instanceof EtcdException || cause instanceof EtcdAuthenticationException) {
+      breaker.onSuccess();
+      LOG.error("Failed to " + operation + ": " + cause.getMessage(), cause);
+    } else if (breaker.onFailure()) {
+      LOG.error("Failed to " + operation + ": " + cause.getMessage(), cause);
     } else {
-      key = filterKey(key);
+      LOG.warn("Failed to {}: {}", operation, cause.getMessage());
     }
-    Counter counter = counters.get(key);
-    if (counter == null) {
-      counter = new Counter();
-      counters.put(key, counter);
+  }
+
+  private void runInBackground(Runnable task) {
+    try {
+      task.run();
+    } catch (Throwable e) {
+      // Never let the exception escape, it would cancel the scheduled task
+      LOG.error("Background refresh failed: " + e.getMessage(), e);
+    }
+  }
+
+  private CounterGroups getCounterGroups(String key) {
+    CounterGroups groups = counterGroups.get(key);
+    if (groups == null) {
+      groups = counterGroups.computeIfAbsent(key, k -> new CounterGroups(k, counters,
+          () -> new Counter(() -> clock.millis(), metricWindowMillis()),
+          () -> counterCardinalityLimits.getOrDefault(k, counterCardinalityLimit),
+          () -> metrics.counterOverflow()));
     }
-    return counter;
+    return groups;
+  }
+
+  @Override
+  public CounterHandle counter(String key) {
+    return getCounter(key);
+  }
+
+  private ResolvedCounter getCounter(String key) {
+    ResolvedCounter handle = counterHandles.get(key);
+    if (handle == null) {
+      String filtered = Keys.filter(key);
+      handle = ResolvedCounter.cache(counterHandles, key,
+          new ResolvedCounter(getCounterGroups(filtered), filtered, cachedCounterHandles, this::refreshIfDue));
+    }
+    return handle;
+  }
+
+  private ResolvedCounter getCounter(String key, String... groups) {
+    return getCounter(key).withGroups(groups);
   }
 
   @Override
   public void incrementInstanceCounter(String key, int amount, String... groups) {
     getCounter(key, groups).increment(amount);
-    refresh();
   }
 
   @Override
   public void incrementInstanceCounter(String key, String... groups) {
-    getCounter(key, groups).increment(1);
-    refresh();
+    getCounter(key, groups).increment();
   }
 
   @Override
   public void setInstanceCounter(String key, int amount, String... groups) {
     getCounter(key, groups).set(amount);
-    refresh();
   }
 
   @Override
   public void addHistogram(String key, long timeInMilliseconds) {
-    refresh();
-    Histogram histogram = histograms.get(key);
-    if (histogram == null) {
-      histogram = new Histogram(new ExponentiallyDecayingReservoir());
-      histograms.put(key, histogram);
+    refreshIfDue();
+    getRecorder(key).update(timeInMilliseconds, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public Timer timer(String key) {
+    return getRecorder(key);
+  }
+
+  private IntervalRecorder getRecorder(String key) {
+    IntervalRecorder recorder = histograms.get(key);
+    if (recorder == null) {
+      recorder = histograms.computeIfAbsent(key, k -> new IntervalRecorder());
     }
-    histogram.update(timeInMilliseconds);
+    return recorder;
   }
 
 
   private void sendSchema() {
+    if (!breaker.isClosed()) {
+      backgroundSchemaSend();
+      return;
+    }
+    String schemaJson = schemaJson();
+    if (schemaJson == null) {
+      return;
+    }
+    schemaDue = 0;
+    long start = System.nanoTime();
     try {
-      LOG.info("Sending schema information");
-      String schemaJson = MAPPER.writeValueAsString(schema);
-      client.sendSchema(schemaJson);
+      schemaPublisher.publish(schemaJson);
+      breaker.onSuccess();
     } catch (Exception e) {
-      LOG.error("Failed to send schema: " + e.getMessage(), e);
+      scheduleSchemaSend(0);
+      handleFailure("send schema", e);
+    } finally {
+      metrics.time(ClientMetrics.REFRESH_SCHEMA, start);
+    }
+  }
+
+  private String schemaJson() {
+    try {
+      String document = SchemaPublisher.document(schema);
+      metrics.size(ClientMetrics.SIZE_SCHEMA, utf8Length(document));
+      return document;
+    } catch (JsonProcessingException e) {
+      LOG.error("Failed to serialize schema: " + e.getMessage(), e);
+      return null;
     }
   }
 
   private void pullConfigData() {
+    if (!breaker.isClosed()) {
+      // Probe without blocking the caller while Etcd is unavailable
+      fetchConfigAsync(backgroundExecutor);
+      return;
+    }
+    long start = System.nanoTime();
+    VersionedValue value;
     try {
       LOG.info("Checking configuration changes");
-      List<Runnable> callbacks = new LinkedList<>();
-      String data = client.fetchConfig();
-      Map<String, Object> configMap = MAPPER.readValue(data, new TypeReference<Map<String, Object>>() {
-      });
-      for (Map.Entry<String, Object> entry : configMap.entrySet()) {
-        SchemaItem schemaItem = schema.get(entry.getKey());
-        if (schemaItem == null) {
-          continue;
-        }
-        @SuppressWarnings("unchecked")
-        String newValue = ((HashMap<String, Object>) (entry.getValue())).get("value").toString();
-        // Value changed
-        if (schemaItem.configValue == null || !schemaItem.configValue.equals(newValue)) {
-          boolean isFirstUpdate = schemaItem.configValue == null;
-          String oldValue = schemaItem.configValue == null ? schemaItem.defaultValue : schemaItem.configValue;
-          schemaItem.configValue = newValue;
-          if (schemaItem.type.equalsIgnoreCase(SchemaItem.Type.PASSWORD.value)) {
-            LOG.info("Configuration value for '{}' changed.", schemaItem.key);
-          } else {
-            LOG.info("Configuration value for {} changed ({} => {})", schemaItem.key, oldValue, newValue);
-          }
-          if (!isFirstUpdate) {
-            for (ConfigUpdate callback : schemaItem.getCallbacks()) {
-              callbacks.add(() -> callback.valueChanged(schemaItem.key));
-            }
-          }
+      value = client.fetchConfigVersioned();
+      breaker.onSuccess();
+    } catch (Exception e) {
+      handleFailure("pull configuration data", e);
+      metrics.time(ClientMetrics.REFRESH_CONFIG, start);
+      return;
+    }
+    applyConfigData(value);
+    metrics.time(ClientMetrics.REFRESH_CONFIG, start);
+  }
+
+  private void applyConfigData(VersionedValue value) {
+    if (value == null || value.getValue() == null) {
+      // Nothing is configured for the service yet, values already applied are kept
+      LOG.debug("No configuration data in Etcd");
+      return;
+    }
+    String data = value.getValue();
+    long index = value.getModifiedIndex();
+    metrics.size(ClientMetrics.SIZE_CONFIG, utf8Length(data));
+    boolean applied = false;
+    synchronized (refreshLock) {
+      try {
+        updateConfig(data);
+        if (index > 0) {
+          configIndex = index;
         }
+        applied = true;
+      } catch (Exception e) {
+        metrics.parseFailure();
+        LOG.error("Failed to apply configuration data: " + e.getMessage(), e);
       }
-      LOG.debug("Configuration pulled successfully");
-      for (Runnable callback : callbacks) {
-        try {
-          callback.run();
-        } catch (Exception exception) {
-          LOG.warn("Configuration update threw unexpected exception", exception);
+    }
+    ConfigCache cache = configCache;
+    if (applied && cache != null) {
+      cache.storeAsync(data, index, backgroundExecutor);
+    }
+    dispatchChanges();
+  }
+
+  /**
+   * Hand changes collected by {@link #updateConfig} to the callback dispatcher once the refresh lock is released, so
+   * listeners never run while the lock is held. The outermost holder of the lock dispatches.
+   */
+  private void dispatchChanges() {
+    if (Thread.holdsLock(refreshLock)) {
+      return;
+    }
+    List<Runnable> dispatches;
+    synchronized (refreshLock) {
+      if (pendingDispatches.isEmpty()) {
+        return;
+      }
+      dispatches = pendingDispatches;
+      pendingDispatches = new ArrayList<>();
+    }
+    for (Runnable dispatch : dispatches) {
+      dispatch.run();
+    }
+  }
+
+  /**
+   * Apply configuration data, changes are dispatched by {@link #dispatchChanges}. Caller must hold the refresh lock.
+   */
+  private void updateConfig(String data) throws IOException {
+    boolean changed = false;
+    Map<String, Object> configMap = MAPPER.readValue(data, new TypeReference<Map<String, Object>>() {
+    });
+    knownValues.clear();
+    for (Map.Entry<String, Object> entry : configMap.entrySet()) {
+      @SuppressWarnings("unchecked")
+      Object value = ((Map<String, Object>) (entry.getValue())).get("value");
+      if (value == null) {
+        continue;
+      }
+      String newValue = value.toString();
+      knownValues.put(entry.getKey(), newValue);
+      SchemaItem schemaItem = schema.get(entry.getKey());
+      if (schemaItem == null) {
+        continue;
+      }
+      // Value changed
+      if (schemaItem.configValue == null || !schemaItem.configValue.equals(newValue)) {
+        boolean isFirstUpdate = schemaItem.configValue == null;
+        String oldValue = schemaItem.configValue == null ? schemaItem.defaultValue : schemaItem.configValue;
+        ConfigValue previous = schemaItem.currentValue();
+        schemaItem.setConfigValue(newValue);
+        ConfigValue current = schemaItem.currentValue();
+        changed = true;
+        if (schemaItem.type.equalsIgnoreCase(SchemaItem.Type.PASSWORD.value)) {
+          LOG.info("Configuration value for '{}' changed.", schemaItem.key);
+        } else {
+          LOG.info("Configuration value for {} changed ({} => {})", schemaItem.key, oldValue, newValue);
+        }
+        if (!isFirstUpdate) {
+          pendingDispatches.add(() -> callbackDispatcher.dispatch(schemaItem, previous, current));
         }
       }
-    } catch (Exception e) {
-      LOG.error("Failed to pull configuration data: " + e.getMessage(), e);
     }
+    if (changed) {
+      publishSnapshot();
+    }
+    LOG.debug("Configuration pulled successfully");
   }
 
   private void sendClientData() {
+    if (!breaker.isClosed()) {
+      uploadClientDataAsync();
+      return;
+    }
     LOG.info("Sending client data");
-    clientData.put("ts", Integer.toString((int) (clock.millis() / 1000)));
-    String configVersion = getConfigString("v");
+    long start = System.nanoTime();
+    DeltaTracker tracker = deltaTracker;
+    long now = clock.millis();
+    long sequence;
+    boolean delta;
+    String json;
+    synchronized (clientData) {
+      sequence = tracker == null ? 0 : tracker.begin();
+      delta = isDelta(tracker, now);
+      json = buildClientData(tracker, now);
+    }
+    if (json == null) {
+      return;
+    }
+    try {
+      if (delta) {
+        client.sendClientDelta(json);
+      } else {
+        client.sendClientInfo(json);
+      }
+      breaker.onSuccess();
+      acknowledgeMetrics(now);
+      if (tracker != null) {
+        tracker.uploaded(sequence);
+      }
+    } catch (Exception e) {
+      handleFailure("send client data", e);
+    } finally {
+      metrics.time(ClientMetrics.REFRESH_METRICS, start);
+    }
+  }
+
+  /**
+   * Deltas are written to their own key and leave the time to live of the full client data as it was, only full
+   * uploads replace heartbeats.
+   */
+  private boolean isDelta(DeltaTracker tracker, long now) {
+    if (tracker != null && !tracker.isFull()) {
+      return true;
+    }
+    lastHeartbeat = now;
+    return false;
+  }
+
+  /**
+   * Counter windows completed before the upload time and the uploaded heavy hitters are not reported again.
+   */
+  private void acknowledgeMetrics(long now) {
+    for (Counter counter : counters.values()) {
+      counter.acknowledge(counter.window(now));
+    }
+    for (CounterGroups groups : counterGroups.values()) {
+      groups.heavyHitters().acknowledge();
+    }
+    for (IntervalRecorder recorder : histograms.values()) {
+      recorder.acknowledge(now);
+    }
+  }
+
+  /**
+   * Update client data and write the payload to upload. Caller must hold the client data lock.
+   */
+  private String buildClientData(DeltaTracker tracker, long now) {
+    clientData.put("ts", Integer.toString((int) (now / 1000)));
+    String configVersion = snapshot.getString("v");
     clientData.put("v", configVersion == null ? "unknown" : configVersion);
     clientData.put("cv", CLIENT_VERSION);
     clientData.put("av", API_VERSION);
     clientData.put("hostname", System.getenv("HOSTNAME"));
     clientData.put("lv", System.getProperty("java.version"));
     clientData.put("started", startedEpoch);
-    clientData.put("uinterval", "60");
-
-    for (Map.Entry<String, Counter> entry : counters.entrySet()) {
-      LinkedList<Integer> counts = new LinkedList<>();
-      counts.add(entry.getValue().getValue());
-      clientData.put("c_" + entry.getKey(), counts);
-    }
-
-    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
-      Snapshot snapshot = entry.getValue().getSnapshot();
-      LinkedList<Double> percentiles = new LinkedList<>();
-      percentiles.add(snapshot.get75thPercentile());
-      percentiles.add(snapshot.get95thPercentile());
-      percentiles.add(snapshot.get99thPercentile());
-      percentiles.add(snapshot.getMedian());
-      clientData.put("h_" + entry.getKey(), percentiles);
-    }
-
+    clientData.put("uinterval", Integer.toString(Math.max(1, metricInterval)));
     try {
-      String json = MAPPER.writeValueAsString(clientData);
-      client.sendClientInfo(json);
-    } catch (Exception e) {
-      LOG.error("Failed to send client data: " + e.getMessage(), e);
+      String json = clientDataWriter.write(clientData, counters, counterGroups, histograms, metrics.report(), tracker, now);
+      metrics.size(ClientMetrics.SIZE_CLIENT, clientDataWriter.lastSize());
+      return json;
+    } catch (IOException e) {
+      LOG.error("Failed to serialize client data: " + e.getMessage(), e);
+      return null;
     }
   }
 
   /**
-   * Configuration pull interval, setting this to 0 will cause configuration to be fetched on every get call
+   * Configuration pull interval, setting this to 0 will cause configuration to be fetched on every get call. Background
+   * refresh reads this when started.
    *
    * @param configCheckInterval Check interval in seconds
    */
   public void setConfigCheckInterval(int configCheckInterval) {
     this.configCheckInterval = configCheckInterval;
   }
+
+  /**
+   * Interval for refreshing the time to live of the client data between metric uploads. Heartbeats do not send the
+   * client data, which allows metric intervals longer than the instance time to live. Client data is uploaded again if
+   * it has expired. Background refresh reads this when started.
+   *
+   * @param heartbeatInterval Heartbeat interval in seconds, 0 or less to keep client data alive only by metric uploads
+   */
+  public void setHeartbeatInterval(int heartbeatInterval) {
+    this.heartbeatInterval = heartbeatInterval;
+  }
+
+  /**
+   * Use Etcd watch for configuration changes instead of polling while background refresh is running. Polling is used
+   * only when the watch is unhealthy. Background refresh reads this when started.
+   *
+   * @param configWatch True to watch configuration changes
+   */
+  public void setConfigWatch(boolean configWatch) {
+    this.configWatch = configWatch;
+  }
+
+  /**
+   * Registry for metrics about the client itself. Refresh phase durations, Etcd round trips, payload sizes,
+   * configuration parse failures and callback durations are registered as "ccentral.*" and also uploaded with the
+   * client data as "i_" keys. Until a registry is set the metrics are recorded to a private registry and not
+   * uploaded. Clients sharing a registry share these metrics.
+   *
+   * @param registry Registry to use
+   */
+  public void setMetricRegistry(MetricRegistry registry) {
+    metrics = new ClientMetrics(registry, true);
+    client.setMetrics(metrics);
+  }
+
+  public MetricRegistry getMetricRegistry() {
+    return metrics.getRegistry();
+  }
+
+  /**
+   * Keep the last known configuration in a local file. If the file exists its values are used immediately, also for
+   * fields added later, and reconciled with Etcd on the next configuration pull. The file is rewritten atomically
+   * whenever the configuration pulled from Etcd changes. The Etcd index stored with it is where the configuration watch
+   * starts, so changes made while the client was down are delivered without reading the configuration first.
+   *
+   * @param file Cache file, its directory must exist
+   */
+  public void setConfigCacheFile(Path file) {
+    synchronized (refreshLock) {
+      configCache = new ConfigCache(file);
+      VersionedValue cached = configCache.load();
+      if (cached != null) {
+        LOG.info("Using cached configuration from {}", file);
+        try {
+          updateConfig(cached.getValue());
+          configIndex = cached.getModifiedIndex();
+        } catch (Exception e) {
+          LOG.warn("Could not apply cached configuration: " + e.getMessage(), e);
+        }
+      }
+    }
+    dispatchChanges();
+  }
+
+  /**
+   * Upload only client data which has changed since the last successful upload. Disabled by default.
+   * <p>
+   * Full snapshots are written to the client data key as before, deltas are written to
+   * "/ccentral/services/&lt;service&gt;/client_deltas/&lt;client&gt;". Static information is sent only in full
+   * snapshots. Every payload has a sequence number in "seq" and "full" set to "1" for full snapshots, removed keys are
+   * sent with null value.
+   * <p>
+   * This breaks existing readers of the client data: the full snapshot is up to fullUploadEvery uploads old and
+   * counter windows uploaded in deltas are not reported in it again. Only consumers which apply the deltas on top of
+   * the last full snapshot see current values. Heartbeats keep the full snapshot alive between full uploads, so they
+   * must not be disabled unless full uploads are more frequent than the client data time to live.
+   *
+   * @param fullUploadEvery Send full snapshot on every n:th upload, 0 disables delta uploads
+   */
+  public void setDeltaUploads(int fullUploadEvery) {
+    deltaTracker = fullUploadEvery > 0 ? new DeltaTracker(fullUploadEvery) : null;
+  }
+
+  /**
+   * Maximum number of distinct group combinations counted separately for each counter key. Updates of new groups over
+   * the limit go to the "key.__other__" counter, the largest of those groups are reported as "t_key" with their counts
+   * for each upload and every update is counted in the "counter.overflow" client metric. Lowering the limit does not
+   * remove counters already created.
+   *
+   * @param limit Maximum number of groups per key, 0 or less for no limit
+   */
+  public void setCounterCardinalityLimit(int limit) {
+    counterCardinalityLimit = limit;
+  }
+
+  /**
+   * Cardinality limit for groups of one counter key, overrides {@link #setCounterCardinalityLimit(int)}.
+   *
+   * @param key Counter key
+   * @param limit Maximum number of groups for the key, 0 or less for no limit
+   */
+  public void setCounterCardinalityLimit(String key, int limit) {
+    counterCardinalityLimits.put(Keys.filter(key), limit);
+  }
+
+  /**
+   * Metric upload interval, also the window length of counters created after this. Background refresh reads this
+   * when started.
+   *
+   * @param metricInterval Upload interval in seconds
+   */
+  public void setMetricInterval(int metricInterval) {
+    this.metricInterval = metricInterval;
+  }
 }
@@ -0,0 +1,123 @@
+package io.github.slvwolf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Delivers configuration changes to listeners on an executor. Changes of one key are delivered in order, one at a
+ * time. Changes arriving while an earlier change of the same key is still waiting are merged, so listeners see only
+ * the latest value together with the value they last saw. By default listeners run one at a time on a background
+ * thread of their own, so slow listeners never hold up threads doing Etcd I/O.
+ */
+class CallbackDispatcher {
+  private static final Logger LOG = LoggerFactory.getLogger(CallbackDispatcher.class);
+  private final Map<String, KeyState> states = new ConcurrentHashMap<>();
+  private final Supplier<ClientMetrics> metrics;
+  private final ThreadPoolExecutor serialExecutor;
+  private volatile Executor executor;
+  private volatile long slowNanos = TimeUnit.SECONDS.toNanos(1);
+
+  private static final class KeyState {
+    private ConfigValue oldValue;
+    private ConfigValue newValue;
+    private boolean pending;
+    private boolean running;
+  }
+
+  CallbackDispatcher(Supplier<ClientMetrics> metrics) {
+    this.metrics = metrics;
+    serialExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+        BackgroundThreads.factory("ccentral-callbacks"));
+    serialExecutor.allowCoreThreadTimeOut(true);
+    executor = serialExecutor;
+  }
+
+  void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Stop the default executor once the changes given to it are delivered. Later changes are delivered on the thread
+   * dispatching them.
+   */
+  void close() {
+    serialExecutor.shutdown();
+  }
+
+  void setSlowThreshold(long millis) {
+    this.slowNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  void dispatch(SchemaItem item, ConfigValue oldValue, ConfigValue newValue) {
+    if (item.getListeners().isEmpty()) {
+      return;
+    }
+    KeyState state = states.computeIfAbsent(item.key, key -> new KeyState());
+    synchronized (state) {
+      if (!state.pending) {
+        state.oldValue = oldValue;
+      }
+      state.newValue = newValue;
+      state.pending = true;
+      if (state.running) {
+        return;
+      }
+      state.running = true;
+    }
+    try {
+      executor.execute(() -> drain(item, state));
+    } catch (RejectedExecutionException e) {
+      LOG.warn("Callback executor rejected update for {}, delivering on the calling thread", item.key);
+      drain(item, state);
+    }
+  }
+
+  private void drain(SchemaItem item, KeyState state) {
+    while (true) {
+      ConfigValue oldValue;
+      ConfigValue newValue;
+      synchronized (state) {
+        if (!state.pending) {
+          state.running = false;
+          return;
+        }
+        oldValue = state.oldValue;
+        newValue = state.newValue;
+        state.pending = false;
+      }
+      if (Objects.equals(oldValue.getString(), newValue.getString())) {
+        // Merged changes ended up in the original value
+        continue;
+      }
+      for (ConfigListener listener : item.getListeners()) {
+        deliver(item.key, listener, oldValue, newValue);
+      }
+    }
+  }
+
+  private void deliver(String key, ConfigListener listener, ConfigValue oldValue, ConfigValue newValue) {
+    long start = System.nanoTime();
+    try {
+      listener.configChanged(key, oldValue, newValue);
+    } catch (Exception exception) {
+      LOG.warn("Configuration update threw unexpected exception", exception);
+    }
+    long elapsed = System.nanoTime() - start;
+    ClientMetrics current = metrics.get();
+    current.time(ClientMetrics.CALLBACK, start);
+    if (elapsed > slowNanos) {
+      current.slowCallback();
+      LOG.warn("Configuration callback for {} took {} ms", key, TimeUnit.NANOSECONDS.toMillis(elapsed));
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package io.github.slvwolf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker for Etcd requests. After a connection failure requests are refused until a jittered exponential
+ * backoff has passed, then a single probe request is let through. A successful probe closes the breaker, a failed one
+ * doubles the backoff.
+ */
+class CircuitBreaker {
+  static final long MIN_BACKOFF_MILLIS = 1_000;
+  static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1_000;
+  private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+  private final LongSupplier clock;
+  private volatile State state = State.CLOSED;
+  private long backoff;
+  private long retryAt;
+
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  CircuitBreaker(LongSupplier clock) {
+    this.clock = clock;
+  }
+
+  State getState() {
+    return state;
+  }
+
+  boolean isClosed() {
+    return state == State.CLOSED;
+  }
+
+  /**
+   * @return True if request can be sent. When the breaker is open and the backoff has passed, the caller owns the
+   *     probe request and must report its result.
+   */
+  synchronized boolean allowRequest() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (clock.getAsLong() < retryAt) {
+          return false;
+        }
+        LOG.info("Probing Etcd connection");
+        state = State.HALF_OPEN;
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  synchronized void onSuccess() {
+    if (state != State.CLOSED) {
+      LOG.info("Etcd connection restored");
+    }
+    state = State.CLOSED;
+    backoff = 0;
+  }
+
+  /**
+   * Record connection failure.
+   *
+   * @return True if the breaker was closed, that is this is the first failure of an outage.
+   */
+  synchronized boolean onFailure() {
+    boolean wasClosed = state == State.CLOSED;
+    if (state == State.OPEN) {
+      // Result of a request sent before the breaker opened
+      return false;
+    }
+    backoff = backoff == 0 ? MIN_BACKOFF_MILLIS : Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+    long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    retryAt = clock.getAsLong() + delay;
+    state = State.OPEN;
+    if (wasClosed) {
+      LOG.warn("Etcd unavailable, pausing requests for {} ms", delay);
+    } else {
+      LOG.warn("Etcd still unavailable, retrying in {} ms", delay);
+    }
+    return wasClosed;
+  }
+}
@@ -0,0 +1,173 @@
+package io.github.slvwolf;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams client data json directly from counters and histograms into a reusable buffer. Field names are encoded
+ * once per key. Not thread-safe, the caller must hold the client data lock.
+ */
+class ClientDataWriter {
+  private static final JsonFactory FACTORY = new JsonFactory();
+  private static final double[] PERCENTILES = {0.75, 0.95, 0.99, 0.5};
+  private final Buffer buffer = new Buffer();
+  private final double[] percentiles = new double[PERCENTILES.length];
+  private final long[] windows = new long[Counter.WINDOWS];
+  private final Map<String, SerializedString> counterNames = new HashMap<>();
+  private final Map<String, SerializedString> histogramNames = new HashMap<>();
+  private final Map<String, SerializedString> heavyHitterNames = new HashMap<>();
+
+  private static final class Buffer extends ByteArrayOutputStream {
+    private Buffer() {
+      super(4096);
+    }
+
+    private String toUtf8() {
+      return new String(buf, 0, count, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Write client data.
+   *
+   * @param clientData Instance information and static fields.
+   * @param counters Counters, reported as "c_" fields holding every completed window not yet acknowledged.
+   * @param counterGroups Groups of counter keys, the largest groups over the cardinality limit are reported as "t_"
+   *                      fields mapping the group to its count since the last acknowledged upload.
+   * @param histograms Histograms, reported as "h_" fields holding percentiles of the latencies recorded since the last
+   *                   acknowledged upload. Starts the next interval of every histogram.
+   * @param internal Metrics of the client itself by their full key.
+   * @param tracker Delta tracker with the payload already started or null for full uploads.
+   * @param now Upload time in milliseconds, windows before the one containing it are completed.
+   * @return Json document.
+   * @throws IOException Writing failed.
+   */
+  String write(Map<String, Object> clientData, Map<String, Counter> counters,
+               Map<String, CounterGroups> counterGroups, Map<String, IntervalRecorder> histograms,
+               Map<String, double[]> internal, DeltaTracker tracker, long now) throws IOException {
+    buffer.reset();
+    try (JsonGenerator generator = FACTORY.createGenerator(buffer)) {
+      generator.writeStartObject();
+      for (Map.Entry<String, Object> entry : clientData.entrySet()) {
+        Object value = entry.getValue();
+        if (!"ts".equals(entry.getKey()) && tracker != null && !tracker.shouldWrite(entry.getKey(), value)) {
+          continue;
+        }
+        generator.writeFieldName(entry.getKey());
+        if (value == null) {
+          generator.writeNull();
+        } else if (value instanceof Number) {
+          generator.writeNumber(((Number) value).longValue());
+        } else {
+          generator.writeString(value.toString());
+        }
+      }
+      for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+        Counter counter = entry.getValue();
+        int count = counter.completed(counter.window(now), windows);
+        if (count == 0) {
+          continue;
+        }
+        SerializedString name = fieldName(counterNames, "c_", entry.getKey());
+        if (tracker != null && !tracker.shouldWrite(name.getValue(), fingerprint(windows, count))) {
+          continue;
+        }
+        generator.writeFieldName(name);
+        generator.writeArray(windows, 0, count);
+      }
+      for (Map.Entry<String, CounterGroups> entry : counterGroups.entrySet()) {
+        List<Map.Entry<String, Long>> heavyHitters = entry.getValue().heavyHitters().drain();
+        if (heavyHitters.isEmpty()) {
+          continue;
+        }
+        SerializedString name = fieldName(heavyHitterNames, "t_", entry.getKey());
+        if (tracker != null && !tracker.shouldWrite(name.getValue(), heavyHitters)) {
+          continue;
+        }
+        generator.writeFieldName(name);
+        generator.writeStartObject();
+        for (Map.Entry<String, Long> heavyHitter : heavyHitters) {
+          generator.writeNumberField(heavyHitter.getKey(), heavyHitter.getValue());
+        }
+        generator.writeEndObject();
+      }
+      for (Map.Entry<String, IntervalRecorder> entry : histograms.entrySet()) {
+        // Histograms report the latencies recorded since the last acknowledged upload
+        if (entry.getValue().snapshot(PERCENTILES, percentiles, now) == 0) {
+          continue;
+        }
+        SerializedString name = fieldName(histogramNames, "h_", entry.getKey());
+        if (tracker != null && !tracker.shouldWrite(name.getValue(), fingerprint(percentiles))) {
+          continue;
+        }
+        generator.writeFieldName(name);
+        generator.writeStartArray();
+        for (double percentile : percentiles) {
+          generator.writeNumber(percentile);
+        }
+        generator.writeEndArray();
+      }
+      for (Map.Entry<String, double[]> entry : internal.entrySet()) {
+        double[] values = entry.getValue();
+        if (tracker != null && !tracker.shouldWrite(entry.getKey(), fingerprint(values))) {
+          continue;
+        }
+        generator.writeFieldName(entry.getKey());
+        generator.writeStartArray();
+        for (double value : values) {
+          generator.writeNumber(value);
+        }
+        generator.writeEndArray();
+      }
+      if (tracker != null) {
+        for (String key : tracker.removedKeys()) {
+          generator.writeNullField(key);
+        }
+        generator.writeNumberField(DeltaTracker.SEQUENCE, tracker.sequence());
+        generator.writeStringField(DeltaTracker.FULL, tracker.isFull() ? "1" : "0");
+      }
+      generator.writeEndObject();
+    }
+    return buffer.toUtf8();
+  }
+
+  /**
+   * @return Size of the last written payload in bytes.
+   */
+  int lastSize() {
+    return buffer.size();
+  }
+
+  private static SerializedString fieldName(Map<String, SerializedString> names, String prefix, String key) {
+    SerializedString name = names.get(key);
+    if (name == null) {
+      name = new SerializedString(prefix + key);
+      names.put(key, name);
+    }
+    return name;
+  }
+
+  private static long fingerprint(long[] values, int count) {
+    long hash = count;
+    for (int i = 0; i < count; i++) {
+      hash = 31 * hash + values[i];
+    }
+    return hash;
+  }
+
+  private static long fingerprint(double[] values) {
+    long hash = 1;
+    for (double value : values) {
+      hash = 31 * hash + Double.doubleToLongBits(value);
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,130 @@
+package io.github.slvwolf;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics about the client itself: refresh phase durations, Etcd round trips, payload sizes, configuration parse
+ * failures, callback durations, the number of slow callbacks and counter updates over the cardinality limit. Metrics
+ * are registered as "ccentral.*" to the given registry and, if enabled, reported in the client data with "i_" keys.
+ * Timers are reported as [p75, p95, p99, p50] milliseconds, sizes as the same percentiles in bytes.
+ */
+class ClientMetrics {
+  static final String PREFIX = "ccentral";
+  static final String REFRESH_SCHEMA = "refresh.schema";
+  static final String REFRESH_CONFIG = "refresh.config";
+  static final String REFRESH_METRICS = "refresh.metrics";
+  static final String CALLBACK = "callback";
+  static final String SIZE_SCHEMA = "size.schema";
+  static final String SIZE_CONFIG = "size.config";
+  static final String SIZE_CLIENT = "size.client";
+  static final String PARSE_FAILURES = "config.parse_failures";
+  static final String SLOW_CALLBACKS = "callback.slow";
+  static final String COUNTER_OVERFLOW = "counter.overflow";
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+  private final MetricRegistry registry;
+  private final boolean uploaded;
+  private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+  private final Map<String, Histogram> sizes = new ConcurrentHashMap<>();
+  private final Counter parseFailures;
+  private final Counter slowCallbacks;
+  private final Counter counterOverflows;
+
+  /**
+   * @param uploaded Report the metrics in the client data
+   */
+  ClientMetrics(MetricRegistry registry, boolean uploaded) {
+    this.registry = registry;
+    this.uploaded = uploaded;
+    this.parseFailures = registry.counter(MetricRegistry.name(PREFIX, PARSE_FAILURES));
+    this.slowCallbacks = registry.counter(MetricRegistry.name(PREFIX, SLOW_CALLBACKS));
+    this.counterOverflows = registry.counter(MetricRegistry.name(PREFIX, COUNTER_OVERFLOW));
+  }
+
+  MetricRegistry getRegistry() {
+    return registry;
+  }
+
+  /**
+   * Record duration from start to now.
+   *
+   * @param name Timer name without prefix
+   * @param startNanos Start from {@link System#nanoTime()}
+   */
+  void time(String name, long startNanos) {
+    Timer timer = timers.get(name);
+    if (timer == null) {
+      timer = timers.computeIfAbsent(name, key -> registry.timer(MetricRegistry.name(PREFIX, key)));
+    }
+    timer.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Etcd round trip for an operation.
+   */
+  void etcd(String operation, long startNanos) {
+    time("etcd." + operation, startNanos);
+  }
+
+  void size(String name, int bytes) {
+    Histogram histogram = sizes.get(name);
+    if (histogram == null) {
+      histogram = sizes.computeIfAbsent(name, key -> registry.histogram(MetricRegistry.name(PREFIX, key)));
+    }
+    histogram.update(bytes);
+  }
+
+  void parseFailure() {
+    parseFailures.inc();
+  }
+
+  void slowCallback() {
+    slowCallbacks.inc();
+  }
+
+  void counterOverflow() {
+    counterOverflows.inc();
+  }
+
+  /**
+   * @return Values reported in client data by key, empty if the metrics are not uploaded.
+   */
+  Map<String, double[]> report() {
+    if (!uploaded) {
+      return Collections.emptyMap();
+    }
+    Map<String, double[]> values = new LinkedHashMap<>();
+    for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+      values.put(key(entry.getKey()), percentiles(entry.getValue().getSnapshot(), NANOS_PER_MILLI));
+    }
+    for (Map.Entry<String, Histogram> entry : sizes.entrySet()) {
+      values.put(key(entry.getKey()), percentiles(entry.getValue().getSnapshot(), 1));
+    }
+    values.put(key(PARSE_FAILURES), new double[]{parseFailures.getCount()});
+    values.put(key(SLOW_CALLBACKS), new double[]{slowCallbacks.getCount()});
+    values.put(key(COUNTER_OVERFLOW), new double[]{counterOverflows.getCount()});
+    return values;
+  }
+
+  private static String key(String name) {
+    return "i_" + name.replace('.', '_');
+  }
+
+  private static double[] percentiles(Snapshot snapshot, double divisor) {
+    return new double[]{
+        snapshot.get75thPercentile() / divisor,
+        snapshot.get95thPercentile() / divisor,
+        snapshot.get99thPercentile() / divisor,
+        snapshot.getMedian() / divisor
+    };
+  }
+}
@@ -0,0 +1,107 @@
+package io.github.slvwolf;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Last known configuration stored on local disk. The file is replaced with an atomic rename so a crash never leaves
+ * a partially written file behind.
+ */
+class ConfigCache {
+  private static final Logger LOG = LoggerFactory.getLogger(ConfigCache.class);
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private final Path file;
+  private final AtomicReference<VersionedValue> pending = new AtomicReference<>();
+  private String stored;
+
+  ConfigCache(Path file) {
+    this.file = file;
+  }
+
+  /**
+   * @return Cached configuration or null if there is no readable cache.
+   */
+  synchronized VersionedValue load() {
+    if (!Files.isRegularFile(file)) {
+      return null;
+    }
+    try {
+      JsonNode node = MAPPER.readTree(file.toFile());
+      JsonNode config = node.get("config");
+      if (config == null || !config.isTextual()) {
+        LOG.warn("Configuration cache {} has no configuration, ignoring it", file);
+        return null;
+      }
+      stored = config.asText();
+      long index = node.path("index").asLong();
+      return new VersionedValue(stored, index, index);
+    } catch (IOException e) {
+      LOG.warn("Could not read configuration cache {}: {}", file, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Store configuration if it differs from the stored one.
+   *
+   * @param config Configuration as stored in Etcd.
+   * @param index Modified index of the configuration, 0 if not known.
+   */
+  synchronized void store(String config, long index) {
+    if (config.equals(stored)) {
+      return;
+    }
+    ObjectNode node = MAPPER.createObjectNode();
+    node.put("index", index);
+    node.put("config", config);
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try {
+      MAPPER.writeValue(temp.toFile(), node);
+      try {
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+      stored = config;
+    } catch (IOException e) {
+      LOG.warn("Could not write configuration cache {}: {}", file, e.getMessage());
+    }
+  }
+
+  /**
+   * Store configuration on the executor. Only the latest of the configurations waiting to be stored is written.
+   *
+   * @param config Configuration as stored in Etcd.
+   * @param index Modified index of the configuration, 0 if not known.
+   * @param executor Executor doing the write
+   */
+  void storeAsync(String config, long index, Executor executor) {
+    if (pending.getAndSet(new VersionedValue(config, index, index)) == null) {
+      try {
+        executor.execute(this::storePending);
+      } catch (RejectedExecutionException e) {
+        storePending();
+      }
+    }
+  }
+
+  private synchronized void storePending() {
+    // Taken with the lock held so an older configuration is never written after a newer one
+    VersionedValue value = pending.getAndSet(null);
+    if (value != null) {
+      store(value.getValue(), value.getModifiedIndex());
+    }
+  }
+}
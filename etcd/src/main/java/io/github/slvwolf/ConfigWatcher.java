@@ -0,0 +1,119 @@
+package io.github.slvwolf;
+
+import mousio.etcd4j.responses.EtcdErrorCode;
+import mousio.etcd4j.responses.EtcdException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Watches configuration changes with Etcd long polling. Reconnects when the watched index is cleared or the connection
+ * is lost. While reconnecting the watcher reports itself unhealthy so that the client can fall back to polling.
+ */
+class ConfigWatcher implements Runnable {
+  private static final Logger LOG = LoggerFactory.getLogger(ConfigWatcher.class);
+  private static final int MAX_BACKOFF_MILLIS = 30_000;
+  private final EtcdOperations client;
+  private final Consumer<VersionedValue> listener;
+  private final int waitTimeoutSeconds;
+  private final long initialIndex;
+  private volatile boolean running;
+  private volatile boolean healthy;
+  private Thread thread;
+
+  /**
+   * @param initialIndex Modified index of the configuration already applied, 0 to read the configuration first
+   */
+  ConfigWatcher(EtcdOperations client, Consumer<VersionedValue> listener, int waitTimeoutSeconds,
+                long initialIndex) {
+    this.client = client;
+    this.listener = listener;
+    this.waitTimeoutSeconds = waitTimeoutSeconds;
+    this.initialIndex = initialIndex;
+  }
+
+  synchronized void start(String name) {
+    if (thread != null) {
+      return;
+    }
+    running = true;
+    thread = BackgroundThreads.factory(name).newThread(this);
+    thread.start();
+  }
+
+  synchronized void stop() {
+    running = false;
+    healthy = false;
+    if (thread != null) {
+      thread.interrupt();
+      thread = null;
+    }
+  }
+
+  /**
+   * @return True if the watch is connected and configuration changes are delivered.
+   */
+  boolean isHealthy() {
+    return healthy;
+  }
+
+  @Override
+  public void run() {
+    // Indexes cleared from the Etcd history fall back to reading the configuration
+    long waitIndex = initialIndex > 0 ? initialIndex + 1 : 0;
+    int failures = 0;
+    while (running) {
+      try {
+        if (waitIndex == 0) {
+          VersionedValue current = client.fetchConfigVersioned();
+          deliver(current);
+          waitIndex = current.getEtcdIndex() + 1;
+          healthy = true;
+        }
+        VersionedValue changed = client.waitForConfig(waitIndex, waitTimeoutSeconds);
+        deliver(changed);
+        waitIndex = changed.getModifiedIndex() + 1;
+        healthy = true;
+        failures = 0;
+      } catch (TimeoutException e) {
+        // No changes during the long poll, watch again from the same index
+        LOG.trace("No configuration changes during watch");
+        healthy = true;
+      } catch (EtcdException e) {
+        if (e.isErrorCode(EtcdErrorCode.EventIndexCleared)) {
+          LOG.debug("Watched index {} was cleared, reading configuration again", waitIndex);
+        } else {
+          failures = fail(failures, e);
+        }
+        waitIndex = 0;
+      } catch (Exception e) {
+        waitIndex = 0;
+        failures = fail(failures, e);
+      }
+    }
+  }
+
+  private void deliver(VersionedValue value) {
+    if (running && value != null && value.getValue() != null) {
+      listener.accept(value);
+    }
+  }
+
+  private int fail(int failures, Exception e) {
+    if (!running) {
+      return failures;
+    }
+    healthy = false;
+    long backoff = Math.min(MAX_BACKOFF_MILLIS, 500L << Math.min(failures, 10));
+    LOG.warn("Configuration watch failed, retrying in {} ms: {}", backoff, e.getMessage());
+    try {
+      Thread.sleep(backoff);
+    } catch (InterruptedException interrupted) {
+      Thread.currentThread().interrupt();
+      running = false;
+    }
+    return failures + 1;
+  }
+}
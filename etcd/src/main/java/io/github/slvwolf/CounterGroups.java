@@ -0,0 +1,102 @@
+package io.github.slvwolf;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Counter of one key and the counters of its groups. Groups beyond the cardinality limit of the key get no counters of
+ * their own, their increments go to the "key.__other__" counter and to a sketch of the largest overflowing groups.
+ */
+class CounterGroups {
+  static final String OTHER = "__other__";
+  private final String key;
+  private final ConcurrentHashMap<String, Counter> counters;
+  private final Supplier<Counter> factory;
+  private final IntSupplier limit;
+  private final Runnable onOverflow;
+  private final AtomicInteger size = new AtomicInteger();
+  private final HeavyHitters heavyHitters = new HeavyHitters();
+
+  /**
+   * @param key Counter key
+   * @param counters Counters of all keys, counters of the key and its groups are added here
+   * @param factory Creates new counters
+   * @param limit Maximum number of group counters, 0 or less for no limit
+   * @param onOverflow Called for every update of a group over the limit
+   */
+  CounterGroups(String key, ConcurrentHashMap<String, Counter> counters, Supplier<Counter> factory,
+                IntSupplier limit, Runnable onOverflow) {
+    this.key = key;
+    this.counters = counters;
+    this.factory = factory;
+    this.limit = limit;
+    this.onOverflow = onOverflow;
+  }
+
+  String getKey() {
+    return key;
+  }
+
+  /**
+   * @return Counter of the key itself.
+   */
+  Counter counter() {
+    return resolve(key);
+  }
+
+  /**
+   * @param group Groups below the key separated with dots
+   * @return Counter of the group or null if the key already has as many group counters as its limit allows.
+   */
+  Counter group(String group) {
+    String groupKey = key + "." + group;
+    Counter counter = counters.get(groupKey);
+    if (counter == null) {
+      counter = counters.computeIfAbsent(groupKey, k -> reserve() ? factory.get() : null);
+    }
+    return counter;
+  }
+
+  private boolean reserve() {
+    int max = limit.getAsInt();
+    while (true) {
+      int current = size.get();
+      if (max > 0 && current >= max) {
+        return false;
+      }
+      if (size.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  private Counter resolve(String counterKey) {
+    Counter counter = counters.get(counterKey);
+    if (counter == null) {
+      counter = counters.computeIfAbsent(counterKey, k -> factory.get());
+    }
+    return counter;
+  }
+
+  /**
+   * Increment of a group without its own counter.
+   */
+  void overflow(String group, int amount) {
+    resolve(key + "." + OTHER).increment(amount);
+    heavyHitters.offer(group, amount);
+    onOverflow.run();
+  }
+
+  /**
+   * Set of a group without its own counter. Set values can not be summed to the other counter so they are dropped.
+   */
+  void overflowSet() {
+    onOverflow.run();
+  }
+
+  HeavyHitters heavyHitters() {
+    return heavyHitters;
+  }
+}
@@ -0,0 +1,131 @@
+package io.github.slvwolf;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Tracks client data already uploaded so that only changed keys need to be sent. Every payload carries a sequence
+ * number and a full flag, every n:th payload is a full snapshot so consumers can rebuild the state. Full snapshots
+ * replace the client data, deltas are written to a key of their own. Removed keys are sent with null value. Values are
+ * compared by fingerprint, strings are used as is and numbers as longs.
+ */
+class DeltaTracker {
+  static final String SEQUENCE = "seq";
+  static final String FULL = "full";
+  private final int fullEvery;
+  private final Map<String, Entry> entries = new HashMap<>();
+  private final List<String> removed = new ArrayList<>();
+  private boolean hasBase;
+  private boolean full;
+  private long sequence;
+  private long lastFullSequence;
+
+  private static final class Entry {
+    private Object uploaded;
+    private boolean hasUploaded;
+    private Object pending;
+    private long pendingSequence;
+    private long seenSequence;
+  }
+
+  DeltaTracker(int fullEvery) {
+    this.fullEvery = fullEvery;
+  }
+
+  /**
+   * Start next payload.
+   *
+   * @return Sequence number of the payload.
+   */
+  synchronized long begin() {
+    sequence++;
+    full = !hasBase || sequence - lastFullSequence >= fullEvery;
+    return sequence;
+  }
+
+  /**
+   * Make the next payload a full snapshot, used when the uploaded data has been lost.
+   */
+  synchronized void reset() {
+    hasBase = false;
+  }
+
+  synchronized long sequence() {
+    return sequence;
+  }
+
+  synchronized boolean isFull() {
+    return full;
+  }
+
+  /**
+   * Check if the value needs to be written to the current payload.
+   *
+   * @param key Client data key.
+   * @param fingerprint Value or fingerprint of the value.
+   * @return True if value has changed since the last successful upload or current payload is a full snapshot.
+   */
+  synchronized boolean shouldWrite(String key, Object fingerprint) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry();
+      entries.put(key, entry);
+    }
+    entry.seenSequence = sequence;
+    if (full || !entry.hasUploaded || !Objects.equals(entry.uploaded, fingerprint)) {
+      entry.pending = fingerprint;
+      entry.pendingSequence = sequence;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return Keys uploaded earlier but not seen in the current payload, these should be written as null.
+   */
+  synchronized List<String> removedKeys() {
+    removed.clear();
+    if (full) {
+      return removed;
+    }
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      Entry value = entry.getValue();
+      if (value.seenSequence != sequence && value.hasUploaded && value.uploaded != null) {
+        value.pending = null;
+        value.pendingSequence = sequence;
+        removed.add(entry.getKey());
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Mark payload successfully uploaded, following deltas are calculated against it. Uploads which have been
+   * superseded by a newer payload are ignored and their changes are sent again.
+   *
+   * @param payloadSequence Sequence returned by {@link #begin()}.
+   */
+  synchronized void uploaded(long payloadSequence) {
+    if (payloadSequence != sequence) {
+      return;
+    }
+    if (full) {
+      hasBase = true;
+      lastFullSequence = payloadSequence;
+    }
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (full && entry.seenSequence != payloadSequence) {
+        iterator.remove();
+      } else if (entry.pendingSequence == payloadSequence) {
+        entry.uploaded = entry.pending;
+        entry.hasUploaded = true;
+      }
+    }
+  }
+}
@@ -1,31 +1,50 @@
 package io.github.slvwolf;
 
 import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.promises.EtcdResponsePromise;
+import mousio.etcd4j.requests.EtcdKeyPutRequest;
+import mousio.etcd4j.requests.EtcdKeyRequest;
 import mousio.etcd4j.responses.EtcdAuthenticationException;
+import mousio.etcd4j.responses.EtcdErrorCode;
 import mousio.etcd4j.responses.EtcdException;
 import mousio.etcd4j.responses.EtcdKeysResponse;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 
 /**
- * Simple wrapper for Etcd.
+ * Simple wrapper for Etcd. Methods ending with Async do not block, their futures are completed on the Netty event
+ * loop. Blocking methods park the calling thread without holding a monitor so virtual threads do not pin their
+ * carrier thread.
  */
-public class EtcdAccess {
+public class EtcdAccess implements EtcdOperations {
 
   private static final String LOCATION_SERVICE_BASE = "/ccentral/services/%s";
-  private static final String LOCATION_SCHEMA = LOCATION_SERVICE_BASE + "/schema";
-  private static final String LOCATION_CONFIG = LOCATION_SERVICE_BASE + "/config";
-  private static final String LOCATION_CLIENTS = LOCATION_SERVICE_BASE + "/clients/%s";
-  private static final String LOCATION_SERVICE_INFO = LOCATION_SERVICE_BASE + "/info/%s";
-  private static final int INSTANCE_TTL = 3 * 60;
-  private static final int TTL_DAY = 26 * 60 * 60;
-  private static final int TIMEOUT_SECONDS = 20;
+  static final String LOCATION_SCHEMA = LOCATION_SERVICE_BASE + "/schema";
+  static final String LOCATION_CONFIG = LOCATION_SERVICE_BASE + "/config";
+  static final String LOCATION_CLIENTS = LOCATION_SERVICE_BASE + "/clients/%s";
+  static final String LOCATION_CLIENT_DELTAS = LOCATION_SERVICE_BASE + "/client_deltas/%s";
+  static final String LOCATION_SERVICE_INFO = LOCATION_SERVICE_BASE + "/info/%s";
+  static final int INSTANCE_TTL = 3 * 60;
+  static final int SERVICE_INFO_TTL = 26 * 60 * 60;
+  static final int TIMEOUT_SECONDS = 20;
+  static final String PUT_CLIENT = "put_client";
+  static final String PUT_CLIENT_DELTA = "put_client_delta";
+  static final String REFRESH_CLIENT = "refresh_client";
+  static final String GET_CONFIG = "get_config";
+  static final String PUT_SCHEMA = "put_schema";
+  static final String GET_SCHEMA = "get_schema";
+  static final String PUT_SERVICE_INFO = "put_service_info";
   private final EtcdClient client;
   private final String serviceId;
   private String clientId;
+  private volatile ClientMetrics metrics;
 
   public EtcdAccess(EtcdClient client, String serviceId, String clientId) {
     this.client = client;
@@ -33,6 +52,7 @@ public class EtcdAccess {
     this.clientId = clientId;
   }
 
+  @Override
   public void setClientId(String clientId) {
     this.clientId = clientId;
   }
@@ -41,34 +61,255 @@ public class EtcdAccess {
     return client;
   }
 
+  @Override
+  public void setMetrics(ClientMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
   public void sendClientInfo(String json) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
-    client.put(String.format(LOCATION_CLIENTS, serviceId, clientId), json)
+    execute(PUT_CLIENT, client.put(String.format(LOCATION_CLIENTS, serviceId, clientId), json)
             .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
-            .ttl(INSTANCE_TTL)
-            .send()
-            .get();
+            .ttl(INSTANCE_TTL));
   }
 
-  public String fetchConfig() throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
-    EtcdKeysResponse response = client.get(String.format(LOCATION_CONFIG, serviceId))
+  @Override
+  public void sendClientDelta(String json) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    execute(PUT_CLIENT_DELTA, client.put(String.format(LOCATION_CLIENT_DELTAS, serviceId, clientId), json)
             .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
-            .send()
-            .get();
+            .ttl(INSTANCE_TTL));
+  }
+
+  @Override
+  public void heartbeat() throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    execute(REFRESH_CLIENT, heartbeatRequest());
+  }
+
+  @Override
+  public String fetchConfig() throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    EtcdKeysResponse response = execute(GET_CONFIG, client.get(String.format(LOCATION_CONFIG, serviceId))
+            .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS));
     return response.node.value;
   }
 
+  @Override
+  public VersionedValue fetchConfigVersioned() throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    EtcdKeysResponse response = execute(GET_CONFIG, client.get(String.format(LOCATION_CONFIG, serviceId))
+            .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    return toVersionedValue(response);
+  }
+
+  @Override
+  public VersionedValue waitForConfig(long waitIndex, int timeoutSeconds) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    EtcdKeysResponse response = await(listen(client.get(String.format(LOCATION_CONFIG, serviceId))
+            .waitForChange(waitIndex)
+            .timeout(timeoutSeconds, TimeUnit.SECONDS)
+            .send(), null));
+    return toVersionedValue(response);
+  }
+
+  private static VersionedValue toVersionedValue(EtcdKeysResponse response) {
+    long modifiedIndex = response.node.modifiedIndex == null ? 0 : response.node.modifiedIndex;
+    long etcdIndex = response.etcdIndex == null ? modifiedIndex : response.etcdIndex;
+    return new VersionedValue(response.node.value, modifiedIndex, etcdIndex);
+  }
+
+  @Override
   public void sendSchema(String schemaJson) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
-    client.put(String.format(LOCATION_SCHEMA, serviceId), schemaJson)
-            .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
-            .send()
-            .get();
+    execute(PUT_SCHEMA, client.put(String.format(LOCATION_SCHEMA, serviceId), schemaJson)
+            .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  @Override
+  public VersionedValue fetchSchema() throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    try {
+      EtcdKeysResponse response = execute(GET_SCHEMA, client.get(String.format(LOCATION_SCHEMA, serviceId))
+              .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      return toVersionedValue(response);
+    } catch (EtcdException e) {
+      if (e.isErrorCode(EtcdErrorCode.KeyNotFound)) {
+        return null;
+      }
+      throw e;
+    }
   }
 
+  @Override
+  public void sendSchema(String schemaJson, long prevIndex) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    execute(PUT_SCHEMA, client.put(String.format(LOCATION_SCHEMA, serviceId), schemaJson)
+            .prevIndex(prevIndex)
+            .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  @Override
   public void sendServiceInfo(String key, String data) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
-    client.put(String.format(LOCATION_SERVICE_INFO, serviceId, key), data)
+    execute(PUT_SERVICE_INFO, client.put(String.format(LOCATION_SERVICE_INFO, serviceId, key), data)
+            .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .ttl(SERVICE_INFO_TTL));
+  }
+
+  @Override
+  public CompletableFuture<Void> sendClientInfoAsync(String json) {
+    return send(PUT_CLIENT, client.put(String.format(LOCATION_CLIENTS, serviceId, clientId), json)
+            .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .ttl(INSTANCE_TTL))
+            .thenApply(response -> null);
+  }
+
+  @Override
+  public CompletableFuture<Void> sendClientDeltaAsync(String json) {
+    return send(PUT_CLIENT_DELTA, client.put(String.format(LOCATION_CLIENT_DELTAS, serviceId, clientId), json)
+            .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .ttl(INSTANCE_TTL))
+            .thenApply(response -> null);
+  }
+
+  @Override
+  public CompletableFuture<Void> heartbeatAsync() {
+    return send(REFRESH_CLIENT, heartbeatRequest()).thenApply(response -> null);
+  }
+
+  /**
+   * Refresh TTL of the existing client data, the value is not sent and the key is not created if it has expired.
+   */
+  private EtcdKeyPutRequest heartbeatRequest() {
+    return client.refresh(String.format(LOCATION_CLIENTS, serviceId, clientId), INSTANCE_TTL)
+            .prevExist(true)
+            .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public CompletableFuture<String> fetchConfigAsync() {
+    return send(GET_CONFIG, client.get(String.format(LOCATION_CONFIG, serviceId))
+            .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            .thenApply(response -> response.node.value);
+  }
+
+  @Override
+  public CompletableFuture<VersionedValue> fetchConfigVersionedAsync() {
+    return send(GET_CONFIG, client.get(String.format(LOCATION_CONFIG, serviceId))
+            .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            .thenApply(EtcdAccess::toVersionedValue);
+  }
+
+  @Override
+  public CompletableFuture<Void> sendSchemaAsync(String schemaJson) {
+    return send(PUT_SCHEMA, client.put(String.format(LOCATION_SCHEMA, serviceId), schemaJson)
+            .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            .thenApply(response -> null);
+  }
+
+  @Override
+  public CompletableFuture<VersionedValue> fetchSchemaAsync() {
+    return send(GET_SCHEMA, client.get(String.format(LOCATION_SCHEMA, serviceId))
+            .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            .handle((response, error) -> {
+              if (error == null) {
+                return toVersionedValue(response);
+              }
+              Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+              if (cause instanceof EtcdException && ((EtcdException) cause).isErrorCode(EtcdErrorCode.KeyNotFound)) {
+                return null;
+              }
+              throw new CompletionException(cause);
+            });
+  }
+
+  @Override
+  public CompletableFuture<Void> sendSchemaAsync(String schemaJson, long prevIndex) {
+    return send(PUT_SCHEMA, client.put(String.format(LOCATION_SCHEMA, serviceId), schemaJson)
+            .prevIndex(prevIndex)
+            .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            .thenApply(response -> null);
+  }
+
+  @Override
+  public CompletableFuture<Void> sendServiceInfoAsync(String key, String data) {
+    return send(PUT_SERVICE_INFO, client.put(String.format(LOCATION_SERVICE_INFO, serviceId, key), data)
             .timeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
-            .ttl(TTL_DAY)
-            .send()
-            .get();
+            .ttl(SERVICE_INFO_TTL))
+            .thenApply(response -> null);
+  }
+
+  private EtcdKeysResponse execute(String operation, EtcdKeyRequest request) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    // EtcdResponsePromise.get() waits on a monitor, waiting for the future instead does not pin virtual threads
+    return await(listen(request.send(), operation));
+  }
+
+  private CompletableFuture<EtcdKeysResponse> send(String operation, EtcdKeyRequest request) {
+    try {
+      return listen(request.send(), operation);
+    } catch (IOException e) {
+      CompletableFuture<EtcdKeysResponse> future = new CompletableFuture<>();
+      future.completeExceptionally(e);
+      return future;
+    }
+  }
+
+  /**
+   * @param operation Operation to record the round trip for or null to not record it.
+   */
+  private CompletableFuture<EtcdKeysResponse> listen(EtcdResponsePromise<EtcdKeysResponse> response,
+                                                     String operation) {
+    CompletableFuture<EtcdKeysResponse> future = new CompletableFuture<>();
+    long start = System.nanoTime();
+    response.addListener(promise -> {
+      if (operation != null) {
+        record(operation, start);
+      }
+      Throwable exception = promise.getException();
+      if (exception != null) {
+        future.completeExceptionally(translate(exception));
+      } else {
+        future.complete(promise.getNow());
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Map Netty timeouts to {@link TimeoutException} like {@link EtcdResponsePromise#get()} does.
+   */
+  private static Throwable translate(Throwable error) {
+    if (error instanceof io.netty.handler.timeout.TimeoutException) {
+      TimeoutException timeout = new TimeoutException("Etcd request timed out");
+      timeout.initCause(error);
+      return timeout;
+    }
+    return error;
+  }
+
+  /**
+   * Wait for the future without holding a monitor and rethrow its failure with the checked type of the cause. Other
+   * failures are wrapped in {@link IOException} like {@link EtcdResponsePromise#get()} does.
+   */
+  static <T> T await(CompletableFuture<T> future) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for Etcd");
+    } catch (ExecutionException e) {
+      Throwable cause = translate(e.getCause());
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof EtcdException) {
+        throw (EtcdException) cause;
+      } else if (cause instanceof EtcdAuthenticationException) {
+        throw (EtcdAuthenticationException) cause;
+      } else if (cause instanceof TimeoutException) {
+        throw (TimeoutException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private void record(String operation, long startNanos) {
+    ClientMetrics current = metrics;
+    if (current != null) {
+      current.etcd(operation, startNanos);
+    }
   }
 }
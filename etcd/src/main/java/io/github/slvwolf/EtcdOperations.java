@@ -0,0 +1,97 @@
+package io.github.slvwolf;
+
+import mousio.etcd4j.responses.EtcdAuthenticationException;
+import mousio.etcd4j.responses.EtcdErrorCode;
+import mousio.etcd4j.responses.EtcdException;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Etcd operations used by the client. Implemented for the v2 keys API by {@link EtcdAccess}, other backends report
+ * errors with the matching v2 {@link EtcdErrorCode} so they are handled the same way. Methods ending with Async do not
+ * block.
+ */
+interface EtcdOperations extends AutoCloseable {
+
+  void setClientId(String clientId);
+
+  /**
+   * Record round trip of every request, except configuration watches, to the given metrics.
+   */
+  void setMetrics(ClientMetrics metrics);
+
+  void sendClientInfo(String json) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException;
+
+  /**
+   * Write changes of the client data since the last full upload to their own key, the full client data is left in
+   * place.
+   */
+  void sendClientDelta(String json) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException;
+
+  /**
+   * Refresh time to live of the client data without rewriting it.
+   *
+   * @throws EtcdException With error code {@link EtcdErrorCode#KeyNotFound} if client data has already expired.
+   */
+  void heartbeat() throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException;
+
+  String fetchConfig() throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException;
+
+  VersionedValue fetchConfigVersioned() throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException;
+
+  /**
+   * Long poll for the next configuration change.
+   *
+   * @param waitIndex First index which is considered a change.
+   * @param timeoutSeconds How long to wait for a change.
+   * @return Changed configuration, value is null if configuration was removed.
+   * @throws TimeoutException No change during the timeout.
+   * @throws EtcdException With error code {@link EtcdErrorCode#EventIndexCleared} if index is too old for watching.
+   */
+  VersionedValue waitForConfig(long waitIndex, int timeoutSeconds) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException;
+
+  void sendSchema(String schemaJson) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException;
+
+  /**
+   * @return Published schema or null if there is no schema yet.
+   */
+  VersionedValue fetchSchema() throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException;
+
+  /**
+   * Replace schema only if it has not been modified since it was read.
+   *
+   * @param schemaJson New schema.
+   * @param prevIndex Modified index of the replaced schema.
+   * @throws EtcdException With error code {@link EtcdErrorCode#TestFailed} if schema was modified.
+   */
+  void sendSchema(String schemaJson, long prevIndex) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException;
+
+  void sendServiceInfo(String key, String data) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException;
+
+  CompletableFuture<Void> sendClientInfoAsync(String json);
+
+  CompletableFuture<Void> sendClientDeltaAsync(String json);
+
+  CompletableFuture<Void> heartbeatAsync();
+
+  CompletableFuture<String> fetchConfigAsync();
+
+  CompletableFuture<VersionedValue> fetchConfigVersionedAsync();
+
+  CompletableFuture<Void> sendSchemaAsync(String schemaJson);
+
+  CompletableFuture<VersionedValue> fetchSchemaAsync();
+
+  CompletableFuture<Void> sendSchemaAsync(String schemaJson, long prevIndex);
+
+  CompletableFuture<Void> sendServiceInfoAsync(String key, String data);
+
+  /**
+   * Release resources owned by this instance. Connections given by the user are left open.
+   */
+  @Override
+  default void close() {
+  }
+}
@@ -0,0 +1,94 @@
+package io.github.slvwolf;
+
+import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.transport.EtcdNettyClient;
+import mousio.etcd4j.transport.EtcdNettyConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Registry of Etcd clients shared by all CCEtcdClient instances in the JVM. Clients connecting to the same hosts with
+ * the same frame size share one Netty event loop and connection pool. Each client is reference counted and closed
+ * when the last user releases it.
+ */
+final class EtcdTransports {
+  private static final Logger LOG = LoggerFactory.getLogger(EtcdTransports.class);
+  private static final Map<String, Transport> BY_KEY = new HashMap<>();
+  private static final Map<EtcdClient, Transport> BY_CLIENT = new IdentityHashMap<>();
+
+  private EtcdTransports() {
+  }
+
+  private static final class Transport {
+    private final String key;
+    private final EtcdClient client;
+    private int references;
+
+    private Transport(String key, EtcdClient client) {
+      this.key = key;
+      this.client = client;
+    }
+  }
+
+  static String key(URI[] hosts, int maxFrameSize) {
+    TreeSet<String> sorted = new TreeSet<>();
+    for (URI host : hosts) {
+      sorted.add(host.toASCIIString());
+    }
+    return sorted + "#" + maxFrameSize;
+  }
+
+  /**
+   * Get shared client for hosts, creating it if needed. Every acquire must be paired with {@link #release}.
+   */
+  static synchronized EtcdClient acquire(URI[] hosts, int maxFrameSize) {
+    String key = key(hosts, maxFrameSize);
+    Transport transport = BY_KEY.get(key);
+    if (transport == null) {
+      for (URI host : hosts) {
+        LOG.info("Creating ETCD connection: {}", host.toASCIIString());
+      }
+      EtcdNettyConfig config = new EtcdNettyConfig()
+          .setMaxFrameSize(maxFrameSize);
+      transport = new Transport(key, new EtcdClient(new EtcdNettyClient(config, Arrays.copyOf(hosts, hosts.length))));
+      BY_KEY.put(key, transport);
+      BY_CLIENT.put(transport.client, transport);
+    }
+    transport.references++;
+    return transport.client;
+  }
+
+  /**
+   * Release client acquired with {@link #acquire}. The client is closed when this was the last reference.
+   */
+  static synchronized void release(EtcdClient client) {
+    Transport transport = BY_CLIENT.get(client);
+    if (transport == null) {
+      return;
+    }
+    if (--transport.references > 0) {
+      return;
+    }
+    BY_KEY.remove(transport.key);
+    BY_CLIENT.remove(client);
+    LOG.info("Closing ETCD connection: {}", transport.key);
+    try {
+      client.close();
+    } catch (IOException e) {
+      LOG.warn("Could not close ETCD connection: {}", e.getMessage());
+    }
+  }
+
+  static synchronized int references(EtcdClient client) {
+    Transport transport = BY_CLIENT.get(client);
+    return transport == null ? 0 : transport.references;
+  }
+}
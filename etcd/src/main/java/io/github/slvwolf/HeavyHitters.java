@@ -0,0 +1,63 @@
+package io.github.slvwolf;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-saving sketch of the groups with the largest increments. At most {@link #CAPACITY} groups are kept, a new
+ * group replaces the one with the smallest count and starts from that count. Counts are upper bounds, overestimated by
+ * at most the smallest kept count. Counts are collected per upload interval and kept until the upload containing them
+ * is acknowledged.
+ */
+class HeavyHitters {
+  static final int CAPACITY = 16;
+  private final Map<String, Long> current = new HashMap<>();
+  private final Map<String, Long> pending = new HashMap<>();
+
+  synchronized void offer(String group, long amount) {
+    offer(current, group, amount);
+  }
+
+  private static void offer(Map<String, Long> counts, String group, long amount) {
+    Long count = counts.get(group);
+    if (count == null && counts.size() >= CAPACITY) {
+      Map.Entry<String, Long> smallest = null;
+      for (Map.Entry<String, Long> entry : counts.entrySet()) {
+        if (smallest == null || entry.getValue() < smallest.getValue()) {
+          smallest = entry;
+        }
+      }
+      count = smallest.getValue();
+      counts.remove(smallest.getKey());
+    }
+    counts.put(group, (count == null ? 0 : count) + amount);
+  }
+
+  /**
+   * Move counts of the current interval to the ones waiting for upload.
+   *
+   * @return Counts waiting for upload, largest first. Empty if no group was over the limit.
+   */
+  synchronized List<Map.Entry<String, Long>> drain() {
+    for (Map.Entry<String, Long> entry : current.entrySet()) {
+      offer(pending, entry.getKey(), entry.getValue());
+    }
+    current.clear();
+    List<Map.Entry<String, Long>> counts = new ArrayList<>(pending.size());
+    for (Map.Entry<String, Long> entry : pending.entrySet()) {
+      counts.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+    }
+    counts.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+    return counts;
+  }
+
+  /**
+   * Drop counts returned by the last {@link #drain}, they were uploaded.
+   */
+  synchronized void acknowledge() {
+    pending.clear();
+  }
+}
@@ -0,0 +1,173 @@
+package io.github.slvwolf;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency recorder reporting percentiles of one interval at a time. Writers record into the active buffer
+ * while the reader swaps buffers and waits for in-flight writers of the finished interval, like HdrHistogram's
+ * Recorder. Each buffer is a fixed size uniform sample of the interval so memory use does not depend on the load.
+ * Finished intervals are kept until the upload containing them is acknowledged, intervals of failed uploads are merged
+ * into the next one.
+ */
+class IntervalRecorder implements Timer {
+  static final int SAMPLE_SIZE = 1028;
+  private final AtomicLong startEpoch = new AtomicLong(0);
+  private final AtomicLong evenEndEpoch = new AtomicLong(0);
+  private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+  private volatile Sample active = new Sample();
+  private Sample inactive = new Sample();
+  private final long[] sorted = new long[SAMPLE_SIZE];
+  private final long[] pending = new long[SAMPLE_SIZE];
+  private int pendingSize;
+  private long pendingCount;
+  private long snapshotUpload = -1;
+
+  private static final class Sample {
+    private final AtomicLongArray values = new AtomicLongArray(SAMPLE_SIZE);
+    private final AtomicLong count = new AtomicLong();
+
+    private void record(long value) {
+      long index = count.getAndIncrement();
+      if (index < SAMPLE_SIZE) {
+        values.set((int) index, value);
+      } else {
+        // Reservoir sampling keeps an uniform sample of the whole interval
+        long replace = ThreadLocalRandom.current().nextLong(index + 1);
+        if (replace < SAMPLE_SIZE) {
+          values.set((int) replace, value);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void update(long duration, TimeUnit unit) {
+    long value = unit.toNanos(duration);
+    long epoch = startEpoch.getAndIncrement();
+    try {
+      active.record(value);
+    } finally {
+      if (epoch < 0) {
+        oddEndEpoch.getAndIncrement();
+      } else {
+        evenEndEpoch.getAndIncrement();
+      }
+    }
+  }
+
+  /**
+   * Finish the current interval and write the percentiles of all intervals not yet acknowledged in milliseconds.
+   *
+   * @param quantiles Quantiles to calculate
+   * @param result Array for results, same length as quantiles
+   * @param upload Time of the upload the percentiles are written to
+   * @return Number of values recorded during the intervals
+   */
+  synchronized long snapshot(double[] quantiles, double[] result, long upload) {
+    Sample finished = swap();
+    long count = finished.count.get();
+    merge(finished, count, (int) Math.min(count, SAMPLE_SIZE));
+    snapshotUpload = upload;
+    System.arraycopy(pending, 0, sorted, 0, pendingSize);
+    Arrays.sort(sorted, 0, pendingSize);
+    for (int i = 0; i < quantiles.length; i++) {
+      result[i] = quantile(quantiles[i], pendingSize) / 1_000_000.0;
+    }
+    return pendingCount;
+  }
+
+  /**
+   * Drop the intervals written by {@link #snapshot} for the upload, it succeeded. If another snapshot was taken since,
+   * the intervals are kept and reported again with the next upload.
+   *
+   * @param upload Time given to {@link #snapshot} for the acknowledged upload
+   */
+  synchronized void acknowledge(long upload) {
+    if (upload == snapshotUpload) {
+      pendingSize = 0;
+      pendingCount = 0;
+    }
+  }
+
+  /**
+   * Add a finished interval to the intervals waiting for upload. When both do not fit, each keeps a random part of
+   * its sample in proportion to the number of values it stands for, so the result is again a uniform sample.
+   */
+  private void merge(Sample finished, long count, int size) {
+    if (size == 0) {
+      return;
+    }
+    long total = pendingCount + count;
+    if (pendingSize + size <= SAMPLE_SIZE) {
+      for (int i = 0; i < size; i++) {
+        pending[pendingSize++] = finished.values.get(i);
+      }
+    } else {
+      int keep = (int) Math.min(pendingSize, Math.round((double) SAMPLE_SIZE * pendingCount / total));
+      int add = Math.min(size, SAMPLE_SIZE - keep);
+      shuffle(pending, pendingSize, keep);
+      for (int i = 0; i < size; i++) {
+        sorted[i] = finished.values.get(i);
+      }
+      shuffle(sorted, size, add);
+      System.arraycopy(sorted, 0, pending, keep, add);
+      pendingSize = keep + add;
+    }
+    pendingCount = total;
+  }
+
+  /**
+   * Move a random selection of count values of the first size values to the start of the array.
+   */
+  private static void shuffle(long[] values, int size, int count) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int i = 0; i < count; i++) {
+      int j = i + random.nextInt(size - i);
+      long value = values[i];
+      values[i] = values[j];
+      values[j] = value;
+    }
+  }
+
+  private double quantile(double quantile, int size) {
+    if (size == 0) {
+      return 0.0;
+    }
+    double position = quantile * (size + 1);
+    int index = (int) position;
+    if (index < 1) {
+      return sorted[0];
+    }
+    if (index >= size) {
+      return sorted[size - 1];
+    }
+    double lower = sorted[index - 1];
+    double upper = sorted[index];
+    return lower + (position - Math.floor(position)) * (upper - lower);
+  }
+
+  private Sample swap() {
+    Sample finished = active;
+    inactive.count.set(0);
+    active = inactive;
+    inactive = finished;
+    // Flip the phase and wait until all writers which may still see the finished sample are done
+    boolean nextPhaseIsEven = startEpoch.get() < 0;
+    long initialStartValue = nextPhaseIsEven ? 0 : Long.MIN_VALUE;
+    if (nextPhaseIsEven) {
+      evenEndEpoch.set(initialStartValue);
+    } else {
+      oddEndEpoch.set(initialStartValue);
+    }
+    long startValueAtFlip = startEpoch.getAndSet(initialStartValue);
+    AtomicLong endEpoch = nextPhaseIsEven ? oddEndEpoch : evenEndEpoch;
+    while (endEpoch.get() != startValueAtFlip) {
+      Thread.yield();
+    }
+    return finished;
+  }
+}
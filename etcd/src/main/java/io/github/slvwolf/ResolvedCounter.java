@@ -0,0 +1,116 @@
+package io.github.slvwolf;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counter handle with its key resolved. Every handle caches the handles of its groups by the group as given, so
+ * resolving a cached group is a single map lookup without building or filtering the key. The number of cached handles
+ * of a client is bounded. Counters are resolved on the first update of the handle, so only keys which are updated are
+ * reported and count towards the cardinality limit of the key. Groups over the limit have no counter, their updates
+ * are recorded as overflow and the counter is looked up again on the next update.
+ */
+class ResolvedCounter implements CounterHandle {
+  static final int MAX_CACHED_HANDLES = 4096;
+  private final String key;
+  private final CounterGroups counterGroups;
+  private final String group;
+  private final ConcurrentHashMap<String, ResolvedCounter> children = new ConcurrentHashMap<>();
+  private final AtomicInteger cached;
+  private final Runnable afterUpdate;
+  private volatile Counter counter;
+
+  /**
+   * @param key Full key, the key of the counter groups followed by the groups separated with dots
+   * @param cached Number of cached handles of the client
+   */
+  ResolvedCounter(CounterGroups counterGroups, String key, AtomicInteger cached, Runnable afterUpdate) {
+    this.key = key;
+    this.counterGroups = counterGroups;
+    int rootLength = counterGroups.getKey().length();
+    this.group = key.length() == rootLength ? null : key.substring(rootLength + 1);
+    this.cached = cached;
+    this.afterUpdate = afterUpdate;
+  }
+
+  /**
+   * Add the handle to the cache unless the client already has {@link #MAX_CACHED_HANDLES} cached handles.
+   *
+   * @param handles Cache of handles by their name as given by the user
+   * @return Cached handle for the same name or the given handle.
+   */
+  static ResolvedCounter cache(ConcurrentHashMap<String, ResolvedCounter> handles, String name,
+                               ResolvedCounter handle) {
+    if (handle.cached.get() < MAX_CACHED_HANDLES) {
+      ResolvedCounter existing = handles.putIfAbsent(name, handle);
+      if (existing != null) {
+        return existing;
+      }
+      handle.cached.incrementAndGet();
+    }
+    return handle;
+  }
+
+  @Override
+  public String getKey() {
+    return key;
+  }
+
+  @Override
+  public ResolvedCounter withGroup(String group) {
+    ResolvedCounter handle = children.get(group);
+    if (handle == null) {
+      handle = cache(children, group,
+          new ResolvedCounter(counterGroups, key + "." + Keys.filter(group), cached, afterUpdate));
+    }
+    return handle;
+  }
+
+  @Override
+  public ResolvedCounter withGroups(String... groups) {
+    ResolvedCounter handle = this;
+    for (String group : groups) {
+      handle = handle.withGroup(group);
+    }
+    return handle;
+  }
+
+  @Override
+  public void increment() {
+    increment(1);
+  }
+
+  /**
+   * @return Counter or null if the group is over the cardinality limit.
+   */
+  private Counter resolve() {
+    Counter resolved = counter;
+    if (resolved == null) {
+      resolved = group == null ? counterGroups.counter() : counterGroups.group(group);
+      counter = resolved;
+    }
+    return resolved;
+  }
+
+  @Override
+  public void increment(int amount) {
+    Counter resolved = resolve();
+    if (resolved != null) {
+      resolved.increment(amount);
+    } else {
+      counterGroups.overflow(group, amount);
+    }
+    afterUpdate.run();
+  }
+
+  @Override
+  public void set(int amount) {
+    Counter resolved = resolve();
+    if (resolved != null) {
+      resolved.set(amount);
+    } else {
+      counterGroups.overflowSet();
+    }
+    afterUpdate.run();
+  }
+}
@@ -0,0 +1,115 @@
+package io.github.slvwolf;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import mousio.etcd4j.responses.EtcdErrorCode;
+import mousio.etcd4j.responses.EtcdException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Publishes schema only when it differs from the stored one. Schema is serialized with keys in sorted order so every
+ * instance produces the same document for the same fields, and documents are compared by their SHA-256 hash.
+ * Replacing an existing schema uses compare-and-swap on its modified index.
+ */
+class SchemaPublisher {
+  private static final Logger LOG = LoggerFactory.getLogger(SchemaPublisher.class);
+  private static final ObjectMapper MAPPER = new ObjectMapper()
+      .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+  private static final int CAS_ATTEMPTS = 2;
+  private final EtcdOperations client;
+  private volatile String publishedHash;
+
+  SchemaPublisher(EtcdOperations client) {
+    this.client = client;
+  }
+
+  static String document(Map<String, SchemaItem> schema) throws JsonProcessingException {
+    return MAPPER.writeValueAsString(schema);
+  }
+
+  static String hash(String document) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(document.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+
+  void publish(String document) throws Exception {
+    String hash = hash(document);
+    if (hash.equals(publishedHash)) {
+      return;
+    }
+    for (int attempt = 1; ; attempt++) {
+      VersionedValue stored = client.fetchSchema();
+      try {
+        if (stored == null) {
+          LOG.info("Sending schema information");
+          client.sendSchema(document);
+        } else if (!hash.equals(hash(stored.getValue()))) {
+          LOG.info("Sending schema information");
+          client.sendSchema(document, stored.getModifiedIndex());
+        } else {
+          LOG.debug("Schema is up to date");
+        }
+        publishedHash = hash;
+        return;
+      } catch (EtcdException e) {
+        if (!e.isErrorCode(EtcdErrorCode.TestFailed) || attempt >= CAS_ATTEMPTS) {
+          throw e;
+        }
+        LOG.info("Schema was modified concurrently, comparing again");
+      }
+    }
+  }
+
+  CompletableFuture<Void> publishAsync(String document) {
+    String hash = hash(document);
+    if (hash.equals(publishedHash)) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return publishAsync(document, hash, 1);
+  }
+
+  private CompletableFuture<Void> publishAsync(String document, String hash, int attempt) {
+    return client.fetchSchemaAsync().thenCompose(stored -> {
+      if (stored == null) {
+        LOG.info("Sending schema information");
+        return client.sendSchemaAsync(document);
+      } else if (!hash.equals(hash(stored.getValue()))) {
+        LOG.info("Sending schema information");
+        return client.sendSchemaAsync(document, stored.getModifiedIndex());
+      }
+      LOG.debug("Schema is up to date");
+      return CompletableFuture.<Void>completedFuture(null);
+    }).handle((ignored, error) -> {
+      if (error == null) {
+        publishedHash = hash;
+        return CompletableFuture.<Void>completedFuture(null);
+      }
+      Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+      if (cause instanceof EtcdException && ((EtcdException) cause).isErrorCode(EtcdErrorCode.TestFailed)
+          && attempt < CAS_ATTEMPTS) {
+        LOG.info("Schema was modified concurrently, comparing again");
+        return publishAsync(document, hash, attempt + 1);
+      }
+      CompletableFuture<Void> failed = new CompletableFuture<>();
+      failed.completeExceptionally(cause);
+      return failed;
+    }).thenCompose(future -> future);
+  }
+}
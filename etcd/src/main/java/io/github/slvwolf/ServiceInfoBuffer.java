@@ -0,0 +1,70 @@
+package io.github.slvwolf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pending service info writes. Only the last value of each key is kept and values equal to the last written one are
+ * skipped until half of the key TTL has passed.
+ */
+class ServiceInfoBuffer {
+  private final Map<String, String> pending = new ConcurrentHashMap<>();
+  private final Map<String, Written> written = new ConcurrentHashMap<>();
+  private final long rewriteAfterMillis;
+
+  private static final class Written {
+    private final String value;
+    private final long time;
+
+    private Written(String value, long time) {
+      this.value = value;
+      this.time = time;
+    }
+  }
+
+  ServiceInfoBuffer(long rewriteAfterMillis) {
+    this.rewriteAfterMillis = rewriteAfterMillis;
+  }
+
+  void put(String key, String value) {
+    pending.put(key, value);
+  }
+
+  boolean isEmpty() {
+    return pending.isEmpty();
+  }
+
+  /**
+   * Take pending writes.
+   *
+   * @param now Current time in milliseconds
+   * @return Values which need to be written
+   */
+  Map<String, String> drain(long now) {
+    Map<String, String> batch = new HashMap<>();
+    for (String key : pending.keySet()) {
+      String value = pending.remove(key);
+      if (value == null) {
+        continue;
+      }
+      Written last = written.get(key);
+      if (last != null && last.value.equals(value) && now - last.time < rewriteAfterMillis) {
+        continue;
+      }
+      batch.put(key, value);
+    }
+    return batch;
+  }
+
+  void written(String key, String value, long now) {
+    written.put(key, new Written(value, now));
+  }
+
+  /**
+   * Requeue failed write unless a newer value is already pending.
+   */
+  void failed(String key, String value) {
+    pending.putIfAbsent(key, value);
+  }
+}
@@ -0,0 +1,34 @@
+package io.github.slvwolf;
+
+/**
+ * Value read from Etcd together with its indexes.
+ */
+public final class VersionedValue {
+  private final String value;
+  private final long modifiedIndex;
+  private final long etcdIndex;
+
+  public VersionedValue(String value, long modifiedIndex, long etcdIndex) {
+    this.value = value;
+    this.modifiedIndex = modifiedIndex;
+    this.etcdIndex = etcdIndex;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  /**
+   * @return Index of the last modification of the key.
+   */
+  public long getModifiedIndex() {
+    return modifiedIndex;
+  }
+
+  /**
+   * @return Cluster wide index at the time of the read, falls back to modified index if not known.
+   */
+  public long getEtcdIndex() {
+    return etcdIndex;
+  }
+}
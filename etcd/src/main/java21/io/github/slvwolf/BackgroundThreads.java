@@ -0,0 +1,43 @@
+package io.github.slvwolf;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads for background refresh, configuration watches and callbacks. Java 21 version using virtual threads, Etcd
+ * requests wait without holding a monitor so blocked threads do not pin their carrier.
+ */
+final class BackgroundThreads {
+  private static final ExecutorService EXECUTOR = Executors.newThreadPerTaskExecutor(factory("ccentral-io"));
+
+  private BackgroundThreads() {
+  }
+
+  /**
+   * @return True if threads created here are virtual threads.
+   */
+  static boolean isVirtual() {
+    return true;
+  }
+
+  /**
+   * @param name Thread name, threads after the first get a sequence number.
+   * @return Factory for background threads.
+   */
+  static ThreadFactory factory(String name) {
+    AtomicInteger created = new AtomicInteger();
+    return runnable -> {
+      int sequence = created.getAndIncrement();
+      return Thread.ofVirtual().name(sequence == 0 ? name : name + "-" + sequence).unstarted(runnable);
+    };
+  }
+
+  /**
+   * @return Shared executor for short tasks that may block on Etcd or the local disk.
+   */
+  static ExecutorService executor() {
+    return EXECUTOR;
+  }
+}
@@ -1,9 +1,17 @@
 package io.github.slvwolf;
 
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.handler.timeout.ReadTimeoutException;
+import mousio.client.promises.ResponsePromise;
+import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.promises.EtcdResponsePromise;
+import mousio.etcd4j.requests.EtcdKeyGetRequest;
 import mousio.etcd4j.responses.EtcdAuthenticationException;
+import mousio.etcd4j.responses.EtcdErrorCode;
 import mousio.etcd4j.responses.EtcdException;
+import mousio.etcd4j.responses.EtcdKeysResponse;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -11,23 +19,52 @@ import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 
 import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.Clock;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static io.github.slvwolf.EtcdStubs.config;
 import static junit.framework.TestCase.assertTrue;
 import static org.hamcrest.CoreMatchers.hasItems;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -37,7 +74,6 @@ public class CCentralTest {
   private static final ObjectMapper MAPPER = new ObjectMapper();
 
   private CCEtcdClient cCentral;
-  @Mock
   private EtcdAccess client;
   @Mock
   private Logger logger;
@@ -47,6 +83,7 @@ public class CCentralTest {
   @Before
   public void setUp() {
     MockitoAnnotations.initMocks(this);
+    client = EtcdStubs.etcdAccess();
     cCentral = new CCEtcdClient(client);
   }
 
@@ -74,7 +111,7 @@ public class CCentralTest {
   /** List types, get value */
   @Test
   public void getListValue() throws Exception {
-    when(client.fetchConfig()).thenReturn("{\"list\": {\"value\": \"[\\\"current\\\"]\"}}");
+    when(client.fetchConfigVersioned()).thenReturn(config("{\"list\": {\"value\": \"[\\\"current\\\"]\"}}"));
     cCentral.addListField("list", "title", "description", Collections.singletonList("default"));
 
     List<String> values = cCentral.getConfigList("list");
@@ -96,7 +133,7 @@ public class CCentralTest {
    */
   @Test
   public void getBoolValue() throws Exception {
-    when(client.fetchConfig()).thenReturn("{\"bool\": {\"value\": \"1\"}}");
+    when(client.fetchConfigVersioned()).thenReturn(config("{\"bool\": {\"value\": \"1\"}}"));
     cCentral.addBooleanField("bool", "title", "description", false);
 
     assertThat("Result should be true", cCentral.getConfigBool("bool"), is(true));
@@ -107,7 +144,7 @@ public class CCentralTest {
    */
   @Test
   public void noCallbackOnFirstRun() throws Exception {
-    when(client.fetchConfig()).thenReturn("{\"bool\": {\"value\": \"1\"}}");
+    when(client.fetchConfigVersioned()).thenReturn(config("{\"bool\": {\"value\": \"1\"}}"));
     ConfigUpdate configUpdate = Mockito.mock(ConfigUpdate.class);
     cCentral.setConfigCheckInterval(-1);
     cCentral.addBooleanField("bool", "title", "description", false);
@@ -123,7 +160,7 @@ public class CCentralTest {
    */
   @Test
   public void callback() throws Exception {
-    when(client.fetchConfig()).thenReturn("{\"bool\": {\"value\": \"1\"}}");
+    when(client.fetchConfigVersioned()).thenReturn(config("{\"bool\": {\"value\": \"1\"}}"));
     ConfigUpdate configUpdate = Mockito.mock(ConfigUpdate.class);
     cCentral.setConfigCheckInterval(-1);
     cCentral.addBooleanField("bool", "title", "description", false);
@@ -131,10 +168,10 @@ public class CCentralTest {
 
     cCentral.refresh();
     reset(client);
-    when(client.fetchConfig()).thenReturn("{\"bool\": {\"value\": \"0\"}}");
+    when(client.fetchConfigVersioned()).thenReturn(config("{\"bool\": {\"value\": \"0\"}}"));
     cCentral.refresh();
 
-    verify(configUpdate).valueChanged(eq("bool"));
+    verify(configUpdate, timeout(1000)).valueChanged(eq("bool"));
   }
 
   /**
@@ -142,14 +179,14 @@ public class CCentralTest {
    */
   @Test
   public void noCallback() throws Exception {
-    when(client.fetchConfig()).thenReturn("{\"bool\": {\"value\": \"1\"}}");
+    when(client.fetchConfigVersioned()).thenReturn(config("{\"bool\": {\"value\": \"1\"}}"));
     ConfigUpdate configUpdate = Mockito.mock(ConfigUpdate.class);
     cCentral.setConfigCheckInterval(-1);
     cCentral.addBooleanField("bool", "title", "description", false);
     cCentral.addCallback("bool", configUpdate);
 
     cCentral.refresh();
-    when(client.fetchConfig()).thenReturn("{\"bool\": {\"value\": \"1\"}}");
+    when(client.fetchConfigVersioned()).thenReturn(config("{\"bool\": {\"value\": \"1\"}}"));
     cCentral.refresh();
 
     verifyNoMoreInteractions(configUpdate);
@@ -168,7 +205,7 @@ public class CCentralTest {
    */
   @Test
   public void getPasswordValue() throws Exception {
-    when(client.fetchConfig()).thenReturn("{\"password_title\": {\"value\": \"pass2\"}}");
+    when(client.fetchConfigVersioned()).thenReturn(config("{\"password_title\": {\"value\": \"pass2\"}}"));
     CCEtcdClient.setLogger(logger);
     cCentral.addPasswordField("password_title", "title", "description", "pass1");
 
@@ -178,7 +215,7 @@ public class CCentralTest {
   }
 
   /**
-   * Pull configuration on late field definitions
+   * Pull configuration on late field definitions, schema is resent once for fields added together
    */
   @Test
   public void pullConfigLate() throws EtcdAuthenticationException, TimeoutException, EtcdException, IOException {
@@ -187,37 +224,72 @@ public class CCentralTest {
     reset(client);
 
     cCentral.addField("key2", "title", "desc", "def");
-    verify(client).fetchConfig();
+    cCentral.addField("key3", "title", "desc", "def");
+    cCentral.refresh();
+    verify(client, never()).sendSchema(Mockito.anyString());
+
+    cCentral.setClock(Clock.offset(cCentral.getClock(), Duration.ofSeconds(2)));
+    cCentral.refresh();
+    verify(client).sendSchema(stringCaptor.capture());
+    assertTrue(stringCaptor.getValue().contains("key3"));
+    verify(client).fetchConfigVersioned();
+  }
+
+  /** Schema is written only when the stored schema differs, replacing it with compare-and-swap */
+  @Test
+  public void schemaHash() throws Exception {
+    cCentral.addField("key", "title", "desc", "def");
+    cCentral.refresh();
+    verify(client).sendSchema(stringCaptor.capture());
+    String document = stringCaptor.getValue();
+    assertTrue(document.indexOf("\"key\"") < document.indexOf("\"v\""));
+
+    CCEtcdClient second = new CCEtcdClient(client);
+    second.addField("key", "title", "desc", "def");
+    when(client.fetchSchema()).thenReturn(new VersionedValue(document, 7, 7));
+    second.refresh();
+    verify(client).sendSchema(Mockito.anyString());
+
+    CCEtcdClient changed = new CCEtcdClient(client);
+    changed.addField("key", "new title", "desc", "def");
+    changed.refresh();
+    verify(client).sendSchema(Mockito.anyString(), eq(7L));
   }
 
   /** Increment with groups */
   @Test
   public void incGroups() throws Exception {
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6001), ZoneOffset.UTC));
     cCentral.incrementInstanceCounter("key", "group1", "group2");
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6041), ZoneOffset.UTC));
     cCentral.refresh();
 
-    verify(client).sendClientInfo(stringCaptor.capture());
-    assertTrue(stringCaptor.getValue().contains("\"c_key.group1.group2\":[0]"));
+    verify(client, times(2)).sendClientInfo(stringCaptor.capture());
+    assertTrue(stringCaptor.getValue().contains("\"c_key.group1.group2\":[1]"));
   }
 
   /** Group parameters are cleaned */
   @Test
   public void cleanGroups() throws Exception {
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6001), ZoneOffset.UTC));
     cCentral.incrementInstanceCounter("key", "invalid.character", "second character");
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6041), ZoneOffset.UTC));
     cCentral.refresh();
 
-    verify(client).sendClientInfo(stringCaptor.capture());
-    assertTrue(stringCaptor.getValue().contains("\"c_key.invalidcharacter.second_character\":[0]"));
+    verify(client, times(2)).sendClientInfo(stringCaptor.capture());
+    assertTrue(stringCaptor.getValue().contains("\"c_key.invalidcharacter.second_character\":[1]"));
   }
 
   /** Increment without groups */
   @Test
   public void incNoGroups() throws Exception {
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6001), ZoneOffset.UTC));
     cCentral.incrementInstanceCounter("key");
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6041), ZoneOffset.UTC));
     cCentral.refresh();
 
-    verify(client).sendClientInfo(stringCaptor.capture());
-    assertTrue(stringCaptor.getValue().contains("\"c_key\":[0]"));
+    verify(client, times(2)).sendClientInfo(stringCaptor.capture());
+    assertTrue(stringCaptor.getValue().contains("\"c_key\":[1]"));
   }
 
   @Test
@@ -237,4 +309,732 @@ public class CCentralTest {
     assertThat(latencies, notNullValue());
     assertThat(latencies, hasItems(12.0, 12.0, 12.0, 10.0));
   }
-}
\ No newline at end of file
+
+  /** Background refresh owns etcd I/O, reads and increments stay on memory */
+  @Test
+  public void backgroundRefresh() throws Exception {
+    when(client.fetchConfigVersionedAsync())
+        .thenReturn(CompletableFuture.completedFuture(new VersionedValue("{\"key\": {\"value\": \"value\"}}", 3, 3)));
+    cCentral.addField("key", "title", "desc", "def");
+    // Scheduled tasks are run once, in order, on the test thread
+    Queue<Runnable> tasks = new ArrayDeque<>();
+    Answer<Object> queue = invocation -> {
+      tasks.add((Runnable) invocation.getArguments()[0]);
+      return null;
+    };
+    ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+    doAnswer(queue).when(executor).execute(Mockito.any(Runnable.class));
+    doAnswer(queue).when(executor).scheduleWithFixedDelay(Mockito.any(Runnable.class), Mockito.anyLong(),
+        Mockito.anyLong(), Mockito.any(TimeUnit.class));
+    doAnswer(queue).when(executor).scheduleAtFixedRate(Mockito.any(Runnable.class), Mockito.anyLong(),
+        Mockito.anyLong(), Mockito.any(TimeUnit.class));
+    when(executor.awaitTermination(Mockito.anyLong(), Mockito.any(TimeUnit.class))).thenReturn(true);
+
+    cCentral.startBackgroundRefresh(executor);
+    while (!tasks.isEmpty()) {
+      tasks.poll().run();
+    }
+    verify(client).sendSchemaAsync(stringCaptor.capture());
+    verify(client).fetchConfigVersionedAsync();
+    verify(client, Mockito.atLeastOnce()).sendClientInfoAsync(stringCaptor.capture());
+
+    cCentral.setConfigCheckInterval(-1);
+    cCentral.incrementInstanceCounter("counter");
+    assertThat(cCentral.getConfig("key"), is("value"));
+    verify(client, never()).fetchConfigVersioned();
+    verify(client, never()).sendClientInfo(stringCaptor.capture());
+    cCentral.stopBackgroundRefresh();
+    verify(executor).shutdownNow();
+    assertThat(cCentral.isBackgroundRefresh(), is(false));
+  }
+
+  /** Configuration changes are applied from the watch without polling */
+  @Test
+  public void configWatch() throws Exception {
+    when(client.fetchConfigVersioned()).thenReturn(new VersionedValue("{\"key\": {\"value\": \"first\"}}", 5, 7));
+    when(client.waitForConfig(eq(8L), Mockito.anyInt()))
+        .thenReturn(new VersionedValue("{\"key\": {\"value\": \"second\"}}", 9, 9));
+    when(client.waitForConfig(eq(10L), Mockito.anyInt())).thenThrow(new TimeoutException());
+    when(client.fetchConfigVersionedAsync()).thenReturn(new CompletableFuture<>());
+    cCentral.addField("key", "title", "desc", "def");
+    cCentral.setConfigWatch(true);
+
+    cCentral.startBackgroundRefresh();
+    try {
+      verify(client, timeout(1000).atLeastOnce()).waitForConfig(eq(10L), Mockito.anyInt());
+      assertThat(cCentral.getConfig("key"), is("second"));
+    } finally {
+      cCentral.stopBackgroundRefresh();
+    }
+  }
+
+  /** Cached configuration is served before Etcd answers and refreshed after a pull */
+  @Test
+  public void configCacheFile() throws Exception {
+    Path file = Files.createTempFile("ccentral", ".json");
+    try {
+      Files.write(file, "{\"index\": 4, \"config\": \"{\\\"key\\\": {\\\"value\\\": \\\"cached\\\"}}\"}"
+          .getBytes(StandardCharsets.UTF_8));
+      cCentral.setConfigCheckInterval(-1);
+      cCentral.setBackgroundExecutor(Runnable::run);
+      cCentral.setConfigCacheFile(file);
+      cCentral.addField("key", "title", "desc", "def");
+      assertThat(cCentral.getConfigSnapshot().getString("key"), is("cached"));
+
+      when(client.fetchConfigVersioned()).thenReturn(new VersionedValue("{\"key\": {\"value\": \"fresh\"}}", 7, 7));
+      cCentral.setConfigCheckInterval(0);
+      // Check is due only once the clock has moved past the previous one
+      cCentral.setClock(Clock.offset(Clock.systemUTC(), Duration.ofSeconds(1)));
+      cCentral.refresh();
+      assertThat(cCentral.getConfig("key"), is("fresh"));
+      String stored = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+      assertTrue(stored.contains("fresh"));
+      assertTrue(stored.contains("\"index\":7"));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /** Configuration missing from Etcd keeps the applied values, it is not a parse failure and is not cached */
+  @Test
+  public void missingConfig() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    cCentral.setMetricRegistry(registry);
+    List<Runnable> writes = new ArrayList<>();
+    cCentral.setBackgroundExecutor(writes::add);
+    Path file = Files.createTempFile("ccentral", ".json");
+    try {
+      Files.write(file, "{\"index\": 4, \"config\": \"{\\\"key\\\": {\\\"value\\\": \\\"cached\\\"}}\"}"
+          .getBytes(StandardCharsets.UTF_8));
+      cCentral.setConfigCacheFile(file);
+      cCentral.setConfigCheckInterval(0);
+      cCentral.addField("key", "title", "desc", "def");
+      when(client.fetchConfigVersioned()).thenReturn(null, new VersionedValue(null, 5, 5));
+      cCentral.refresh();
+      cCentral.setClock(Clock.offset(Clock.systemUTC(), Duration.ofSeconds(1)));
+      cCentral.refresh();
+
+      verify(client, times(2)).fetchConfigVersioned();
+      assertThat(cCentral.getConfig("key"), is("cached"));
+      assertThat(registry.counter("ccentral.config.parse_failures").getCount(), is(0L));
+      assertThat(writes.isEmpty(), is(true));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /** Watch continues from the index of the cached configuration */
+  @Test
+  public void configCacheFileWatch() throws Exception {
+    Path file = Files.createTempFile("ccentral", ".json");
+    try {
+      Files.write(file, "{\"index\": 4, \"config\": \"{\\\"key\\\": {\\\"value\\\": \\\"cached\\\"}}\"}"
+          .getBytes(StandardCharsets.UTF_8));
+      when(client.waitForConfig(eq(5L), Mockito.anyInt()))
+          .thenReturn(new VersionedValue("{\"key\": {\"value\": \"changed\"}}", 6, 6));
+      when(client.waitForConfig(eq(7L), Mockito.anyInt())).thenThrow(new TimeoutException());
+        when(client.fetchConfigVersionedAsync()).thenReturn(new CompletableFuture<>());
+      cCentral.setConfigCacheFile(file);
+      cCentral.addField("key", "title", "desc", "def");
+      cCentral.setConfigWatch(true);
+
+      cCentral.startBackgroundRefresh();
+      try {
+        verify(client, timeout(1000).atLeastOnce()).waitForConfig(eq(7L), Mockito.anyInt());
+        assertThat(cCentral.getConfigSnapshot().getString("key"), is("changed"));
+      } finally {
+        cCentral.stopBackgroundRefresh();
+      }
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /** In-memory client serves defaults and local overrides, metrics are discarded */
+  @Test
+  public void memoryClient() throws Exception {
+    CCMemoryClient memory = new CCMemoryClient();
+    memory.setConfig("limit", "5");
+    IntConfig limit = memory.addIntConfig("limit", "title", "desc", 1);
+    memory.addField("name", "title", "desc", "def");
+    final int[] calls = {0};
+    memory.addCallback("name", key -> calls[0]++);
+
+    assertThat(limit.get(), is(5));
+    assertThat(memory.getConfig("name"), is("def"));
+    memory.setConfig("name", "local");
+    assertThat(memory.getConfigSnapshot().getString("name"), is("local"));
+    assertThat(calls[0], is(1));
+    memory.setConfig("name", null);
+    assertThat(memory.getConfigString("name"), is("def"));
+
+    memory.addCallback("na!me", key -> calls[0]++);
+    memory.setConfig("name", "filtered");
+    assertThat(calls[0], is(4));
+
+    CounterHandle counter = memory.counter("coun ter").withGroup("gr.oup");
+    assertThat(counter.getKey(), is("coun_ter.group"));
+    assertThat(counter.withGroups("a", "b").getKey(), is("coun_ter.group.a.b"));
+    counter.increment();
+    memory.timer("latency").time().close();
+    memory.refresh();
+  }
+
+  /** Default counter handle of other clients updates through the instance counter methods */
+  @Test
+  public void defaultCounterHandle() {
+    CCClient other = mock(CCClient.class);
+    CounterHandle handle = new InstanceCounterHandle(other, "coun ter").withGroup("a");
+    assertThat(handle.getKey(), is("coun_ter.a"));
+    handle.increment();
+    handle.withGroups("b", "c").increment(2);
+    handle.set(3);
+    verify(other).incrementInstanceCounter("coun ter", "a");
+    verify(other).incrementInstanceCounter("coun ter", 2, "a", "b", "c");
+    verify(other).setInstanceCounter("coun ter", 3, "a");
+  }
+
+  /** File backend applies the initial file and changes made with the ConfigMap symlink swap */
+  @Test
+  public void fileBackend() throws Exception {
+    Path dir = Files.createTempDirectory("configmap");
+    Files.createDirectory(dir.resolve("..v1"));
+    Files.write(dir.resolve("..v1").resolve("config.json"),
+        "{\"limit\": {\"value\": \"5\"}, \"name\": {\"value\": \"file\"}}".getBytes(StandardCharsets.UTF_8));
+    Files.createSymbolicLink(dir.resolve("..data"), Paths.get("..v1"));
+    Files.createSymbolicLink(dir.resolve("config.json"), Paths.get("..data", "config.json"));
+
+    try (CCMemoryClient fileClient = new CCMemoryClient(new FileConfigBackend(dir.resolve("config.json")))) {
+      IntConfig limit = fileClient.addIntConfig("limit", "title", "desc", 1);
+      fileClient.addField("name", "title", "desc", "def");
+      assertThat(limit.get(), is(5));
+      BlockingQueue<String> changes = new LinkedBlockingQueue<>();
+      fileClient.addListener("limit", (key, oldValue, newValue) -> changes.add(oldValue + "->" + newValue));
+
+      Files.createDirectory(dir.resolve("..v2"));
+      Files.write(dir.resolve("..v2").resolve("config.json"),
+          "{\"limit\": {\"value\": \"7\"}}".getBytes(StandardCharsets.UTF_8));
+      Files.createSymbolicLink(dir.resolve("..data_tmp"), Paths.get("..v2"));
+      Files.move(dir.resolve("..data_tmp"), dir.resolve("..data"), StandardCopyOption.ATOMIC_MOVE);
+
+      assertThat(changes.poll(10, TimeUnit.SECONDS), is("5->7"));
+      assertThat(limit.get(), is(7));
+      assertThat(fileClient.getConfigString("name"), is("def"));
+    }
+  }
+
+  /** Clients to the same hosts share one transport which is closed with the last client */
+  @Test
+  public void sharedTransport() throws Exception {
+    URI first = URI.create("http://127.0.0.1:4001");
+    URI second = URI.create("http://127.0.0.2:4001");
+    EtcdClient transport = EtcdTransports.acquire(new URI[]{first, second}, 1024);
+    assertThat(EtcdTransports.acquire(new URI[]{second, first}, 1024) == transport, is(true));
+    EtcdClient other = EtcdTransports.acquire(new URI[]{first, second}, 2048);
+    assertThat(other == transport, is(false));
+    EtcdTransports.release(other);
+    assertThat(EtcdTransports.references(transport), is(2));
+
+    EtcdTransports.release(transport);
+    assertThat(EtcdTransports.references(transport), is(1));
+    EtcdTransports.release(transport);
+    assertThat(EtcdTransports.references(transport), is(0));
+    EtcdClient recreated = EtcdTransports.acquire(new URI[]{first, second}, 1024);
+    assertThat(recreated == transport, is(false));
+    EtcdTransports.release(recreated);
+
+    CCEtcdClient serviceA = new CCEtcdClient("a", new URI[]{first});
+    CCEtcdClient serviceB = new CCEtcdClient("b", new URI[]{first});
+    EtcdClient shared = EtcdTransports.acquire(new URI[]{first}, 1024 * 200);
+    assertThat(EtcdTransports.references(shared), is(3));
+    serviceA.close();
+    serviceA.close();
+    serviceB.close();
+    assertThat(EtcdTransports.references(shared), is(1));
+    EtcdTransports.release(shared);
+  }
+
+  /** Concurrent increments on new group keys keep all counters */
+  @Test
+  public void concurrentIncrements() throws Exception {
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      String group = "group" + i;
+      threads[i] = new Thread(() -> {
+        for (int j = 0; j < 1000; j++) {
+          cCentral.incrementInstanceCounter("key", group, Integer.toString(j % 10));
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    cCentral.setClock(Clock.offset(cCentral.getClock(), Duration.ofMinutes(1)));
+    cCentral.refresh();
+
+    verify(client, Mockito.atLeastOnce()).sendClientInfo(stringCaptor.capture());
+    Map<String, Object> values = MAPPER.readValue(stringCaptor.getValue(), new TypeReference<Map<String, Object>>() {
+    });
+    for (int i = 0; i < threads.length; i++) {
+      for (int j = 0; j < 10; j++) {
+        assertThat(values.get("c_key.group" + i + "." + j), notNullValue());
+      }
+    }
+  }
+
+  /** Snapshot holds pre-parsed values of one configuration version */
+  @Test
+  public void configSnapshot() throws Exception {
+    when(client.fetchConfigVersioned()).thenReturn(
+        config("{\"int\": {\"value\": \"5\"}, \"list\": {\"value\": \"[\\\"a\\\"]\"}}"));
+    cCentral.setConfigCheckInterval(-1);
+    cCentral.addIntField("int", "title", "description", 1);
+    cCentral.addListField("list", "title", "description", Collections.singletonList("default"));
+    ConfigSnapshot before = cCentral.getConfigSnapshot();
+
+    when(client.fetchConfigVersioned()).thenReturn(
+        config("{\"int\": {\"value\": \"6\"}, \"list\": {\"value\": \"[\\\"a\\\"]\"}}"));
+    ConfigSnapshot after = cCentral.getConfigSnapshot();
+
+    assertThat(before.getInt("int"), is(5));
+    assertThat(after.getInt("int"), is(6));
+    assertThat(after.getList("list"), is(Collections.singletonList("a")));
+    assertTrue(after.getVersion() > before.getVersion());
+    assertTrue(after.getList("list") == cCentral.getConfigList("list"));
+  }
+
+  /** Typed handles read current values */
+  @Test
+  public void configHandles() throws Exception {
+    when(client.fetchConfigVersioned()).thenReturn(
+        config("{\"int_key\": {\"value\": \"5\"}, \"bool\": {\"value\": \"1\"}}"));
+    IntConfig intConfig = cCentral.addIntConfig("int key", "title", "description", 1);
+    BooleanConfig boolConfig = cCentral.addBooleanConfig("bool", "title", "description", false);
+    StringConfig stringConfig = cCentral.addStringConfig("string", "title", "description", "default");
+
+    assertThat(intConfig.get(), is(5));
+    assertThat(intConfig.getKey(), is("int_key"));
+    assertThat(boolConfig.get(), is(true));
+    assertThat(stringConfig.get(), is("default"));
+  }
+
+  /** Handles read the latest registration of their key */
+  @Test
+  public void configHandleRegisteredAgain() throws Exception {
+    when(client.fetchConfigVersioned()).thenReturn(config("{\"limit\": {\"value\": \"5\"}}"));
+    cCentral.setConfigCheckInterval(-1);
+    IntConfig limit = cCentral.addIntConfig("limit", "title", "description", 1);
+    assertThat(limit.get(), is(5));
+
+    IntConfig again = cCentral.addIntConfig("limit", "title", "description", 2);
+    assertThat(limit.get(), is(5));
+    when(client.fetchConfigVersioned()).thenReturn(config("{\"limit\": {\"value\": \"6\"}}"));
+    assertThat(limit.get(), is(6));
+    assertThat(again.get(), is(6));
+  }
+
+  /** Counter handles share counters with the key based API */
+  @Test
+  public void counterHandles() throws Exception {
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6001), ZoneOffset.UTC));
+    CounterHandle requests = cCentral.counter("requests");
+    CounterHandle ok = requests.withGroups("api", "200");
+    ok.increment();
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6041), ZoneOffset.UTC));
+    cCentral.incrementInstanceCounter("requests", "api", "200");
+
+    assertThat(ok.getKey(), is("requests.api.200"));
+    assertTrue(ok == requests.withGroup("api").withGroup("200"));
+    verify(client, times(2)).sendClientInfo(stringCaptor.capture());
+    assertTrue(stringCaptor.getValue().contains("\"c_requests.api.200\":[1]"));
+  }
+
+  /** Timer records into the histogram of the same key, percentiles cover values since the last acknowledged upload */
+  @Test
+  public void timer() throws Exception {
+    cCentral.refresh();
+    Timer timer = cCentral.timer("latency");
+    try (Timer.Context ignored = timer.time()) {
+      Thread.sleep(2);
+    }
+    cCentral.setClock(Clock.offset(cCentral.getClock(), Duration.ofMinutes(1)));
+    cCentral.refresh();
+    cCentral.setClock(Clock.offset(cCentral.getClock(), Duration.ofMinutes(1)));
+    cCentral.refresh();
+
+    ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+    verify(client, times(3)).sendClientInfo(captor.capture());
+    Map<String, Object> values = MAPPER.readValue(captor.getAllValues().get(1),
+        new TypeReference<Map<String, Object>>() {
+        });
+    @SuppressWarnings("unchecked")
+    List<Double> latencies = (List) values.get("h_latency");
+    assertTrue(latencies.get(0) >= 2.0);
+    assertTrue(!captor.getAllValues().get(2).contains("h_latency"));
+  }
+
+  /** Delta uploads send only changed keys between full snapshots, the full client data is replaced only by snapshots */
+  @Test
+  public void deltaUploads() throws Exception {
+    cCentral.setDeltaUploads(3);
+    cCentral.setConfigCheckInterval(1000);
+    cCentral.setMetricInterval(-1);
+    cCentral.addInstanceInfo("static", "value");
+    cCentral.addInstanceInfo("changing", "1");
+    cCentral.addInstanceInfo("changing", "2");
+    cCentral.addInstanceInfo("changing", "3");
+
+    ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+    verify(client, times(2)).sendClientInfo(captor.capture());
+    List<String> full = captor.getAllValues();
+    assertTrue(full.get(0).contains("\"full\":\"1\""));
+    assertTrue(full.get(1).contains("\"full\":\"1\""));
+    assertTrue(full.get(1).contains("\"k_static\":\"value\""));
+    assertTrue(full.get(1).contains("\"k_changing\""));
+
+    ArgumentCaptor<String> deltaCaptor = ArgumentCaptor.forClass(String.class);
+    verify(client, times(2)).sendClientDelta(deltaCaptor.capture());
+    List<String> deltas = deltaCaptor.getAllValues();
+    assertTrue(deltas.get(0).contains("\"k_static\":\"value\""));
+    assertTrue(deltas.get(1).contains("\"full\":\"0\""));
+    assertTrue(deltas.get(1).contains("\"k_changing\":\"1\""));
+    assertTrue(!deltas.get(1).contains("k_static"));
+    assertTrue(!deltas.get(1).contains("hostname"));
+  }
+
+  /** Service info is written in the refresh cycle, last value wins and unchanged values are skipped */
+  @Test
+  public void serviceInfoBatching() throws Exception {
+    cCentral.setConfigCheckInterval(1000);
+    cCentral.setMetricInterval(1000);
+    cCentral.addServiceInfo("info", "1");
+    verify(client).sendServiceInfoAsync("info", "1");
+
+    cCentral.addServiceInfo("info", "2");
+    cCentral.addServiceInfo("info", "3");
+    cCentral.addServiceInfo("other", "x");
+    verify(client, never()).sendServiceInfoAsync("other", "x");
+
+    cCentral.setClock(Clock.offset(Clock.systemUTC(), Duration.ofSeconds(2000)));
+    cCentral.refresh();
+    verify(client).sendServiceInfoAsync("info", "3");
+    verify(client).sendServiceInfoAsync("other", "x");
+    verify(client, never()).sendServiceInfoAsync("info", "2");
+
+    cCentral.addServiceInfo("info", "3");
+    cCentral.setClock(Clock.offset(Clock.systemUTC(), Duration.ofSeconds(4000)));
+    cCentral.refresh();
+    verify(client).sendServiceInfoAsync("info", "3");
+    verify(client, never()).sendServiceInfo(Mockito.anyString(), Mockito.anyString());
+  }
+
+  /** After a connection failure callers do not block on Etcd, recovery is probed asynchronously */
+  @Test
+  public void circuitBreaker() throws Exception {
+    CompletableFuture<VersionedValue> down = new CompletableFuture<>();
+    down.completeExceptionally(new IOException("down"));
+    when(client.fetchConfigVersioned()).thenThrow(new IOException("down"));
+    when(client.fetchConfigVersionedAsync()).thenReturn(down);
+    // Probe results are handled on the calling thread
+    cCentral.setBackgroundExecutor(Runnable::run);
+    cCentral.addField("key", "title", "desc", "def");
+    cCentral.setConfigCheckInterval(10);
+    cCentral.setMetricInterval(1000);
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6001), ZoneOffset.UTC));
+    cCentral.refresh();
+    verify(client).fetchConfigVersioned();
+    verify(client, never()).sendClientInfo(Mockito.anyString());
+
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6021), ZoneOffset.UTC));
+    cCentral.refresh();
+    verify(client).fetchConfigVersioned();
+    verify(client).fetchConfigVersionedAsync();
+    assertThat(cCentral.getConfigString("key"), is("def"));
+
+    when(client.fetchConfigVersionedAsync()).thenReturn(
+        CompletableFuture.completedFuture(new VersionedValue("{\"key\": {\"value\": \"value\"}}", 1, 1)));
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6041), ZoneOffset.UTC));
+    cCentral.refresh();
+    verify(client, times(2)).fetchConfigVersionedAsync();
+    assertThat(cCentral.getConfigString("key"), is("value"));
+
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6061), ZoneOffset.UTC));
+    cCentral.refresh();
+    verify(client, times(2)).fetchConfigVersioned();
+  }
+
+  /** Client records its own refresh metrics to the registry and uploads them as internal keys */
+  @Test
+  public void selfInstrumentation() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    cCentral.setMetricRegistry(registry);
+    when(client.fetchConfigVersioned()).thenReturn(config("{\"key\": {\"value\": \"value\"}}"), config("{broken"));
+    cCentral.addField("key", "title", "desc", "def");
+    cCentral.refresh();
+    cCentral.setConfigCheckInterval(0);
+    cCentral.setClock(Clock.offset(Clock.systemUTC(), Duration.ofMinutes(2)));
+    cCentral.refresh();
+
+    assertThat(registry.timer("ccentral.refresh.schema").getCount(), is(1L));
+    assertThat(registry.timer("ccentral.refresh.config").getCount(), is(2L));
+    assertThat(registry.histogram("ccentral.size.client").getCount(), is(2L));
+    assertThat(registry.counter("ccentral.config.parse_failures").getCount(), is(1L));
+    verify(client, times(2)).sendClientInfo(stringCaptor.capture());
+    String data = stringCaptor.getValue();
+    assertTrue(data.contains("\"i_refresh_schema\":["));
+    assertTrue(data.contains("\"i_size_client\":["));
+    assertTrue(data.contains("\"i_config_parse_failures\":[1.0]"));
+  }
+
+  /** Counters report every completed window once, windows of failed uploads are reported with the next upload */
+  @Test
+  public void counterWindows() throws Exception {
+    cCentral.setMetricInterval(60);
+    cCentral.setConfigCheckInterval(100000);
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6001), ZoneOffset.UTC));
+    CounterHandle counter = cCentral.counter("key");
+    counter.increment(3);
+    cCentral.refresh();
+
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6061), ZoneOffset.UTC));
+    counter.increment(5);
+    cCentral.refresh();
+
+    doThrow(new EtcdException(500, "down", null, 0L) { }).when(client).sendClientInfo(Mockito.anyString());
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6121), ZoneOffset.UTC));
+    counter.increment(7);
+    cCentral.refresh();
+
+    doNothing().when(client).sendClientInfo(Mockito.anyString());
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6241), ZoneOffset.UTC));
+    cCentral.refresh();
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6299), ZoneOffset.UTC));
+    cCentral.refresh();
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6301), ZoneOffset.UTC));
+    cCentral.refresh();
+
+    ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+    verify(client, times(5)).sendClientInfo(captor.capture());
+    List<String> uploads = captor.getAllValues();
+    // Counter is created in the window of the first upload, it has no completed windows yet
+    assertTrue(!uploads.get(0).contains("\"c_key\""));
+    assertTrue(uploads.get(1).contains("\"c_key\":[3]"));
+    assertTrue(uploads.get(2).contains("\"c_key\":[5]"));
+    assertTrue(uploads.get(3).contains("\"c_key\":[5,7,0]"));
+    assertTrue(uploads.get(3).contains("\"uinterval\":\"60\""));
+    assertTrue(uploads.get(4).contains("\"c_key\":[0]"));
+  }
+
+  /** Only counters which are updated are reported, not the keys of their parent groups */
+  @Test
+  public void groupCounterKeys() throws Exception {
+    cCentral.setMetricInterval(60);
+    cCentral.setConfigCheckInterval(100000);
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6001), ZoneOffset.UTC));
+    cCentral.refresh();
+    cCentral.incrementInstanceCounter("req", "api", "200");
+    CounterHandle unused = cCentral.counter("unused").withGroup("group");
+    assertThat(unused.getKey(), is("unused.group"));
+    assertThat(cCentral.counter("req").withGroups("api", "200") == cCentral.counter("req").withGroups("api", "200"),
+        is(true));
+
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6061), ZoneOffset.UTC));
+    cCentral.refresh();
+    verify(client, times(2)).sendClientInfo(stringCaptor.capture());
+    String upload = stringCaptor.getValue();
+    assertTrue(upload.contains("\"c_req.api.200\":[1]"));
+    assertTrue(!upload.contains("\"c_req\""));
+    assertTrue(!upload.contains("\"c_req.api\""));
+    assertTrue(!upload.contains("c_unused"));
+  }
+
+  /** Groups over the cardinality limit go to the other counter and the largest of them are reported per upload */
+  @Test
+  public void counterCardinality() throws Exception {
+    cCentral.setMetricRegistry(new MetricRegistry());
+    cCentral.setMetricInterval(60);
+    cCentral.setConfigCheckInterval(100000);
+    cCentral.setCounterCardinalityLimit(1);
+    cCentral.setCounterCardinalityLimit("key", 2);
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6001), ZoneOffset.UTC));
+    cCentral.incrementInstanceCounter("key", 1, "a");
+    cCentral.incrementInstanceCounter("key", 2, "b", "x");
+    cCentral.incrementInstanceCounter("key", 3, "c");
+    cCentral.incrementInstanceCounter("key", 4, "d");
+    cCentral.counter("key").withGroups("d").increment(5);
+    cCentral.setInstanceCounter("key", 6, "e");
+    cCentral.incrementInstanceCounter("other", 1, "a");
+    cCentral.incrementInstanceCounter("other", 1, "b");
+
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6061), ZoneOffset.UTC));
+    cCentral.refresh();
+    // Overflowing groups get their own counter once the limit allows
+    cCentral.setCounterCardinalityLimit("key", 3);
+    cCentral.incrementInstanceCounter("key", 1, "d");
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6121), ZoneOffset.UTC));
+    cCentral.refresh();
+
+    ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+    verify(client, times(3)).sendClientInfo(captor.capture());
+    List<String> uploads = captor.getAllValues();
+    assertTrue(uploads.get(1).contains("\"c_key.a\":[1]"));
+    assertTrue(uploads.get(1).contains("\"c_key.b.x\":[2]"));
+    assertTrue(!uploads.get(1).contains("\"c_key.b\""));
+    assertTrue(uploads.get(1).contains("\"c_key.__other__\":[12]"));
+    assertTrue(uploads.get(1).contains("\"t_key\":{\"d\":9,\"c\":3}"));
+    assertTrue(uploads.get(1).contains("\"c_other.__other__\":[1]"));
+    assertTrue(uploads.get(1).contains("\"t_other\":{\"b\":1}"));
+    assertTrue(uploads.get(1).contains("\"i_counter_overflow\":[5.0]"));
+    assertTrue(!uploads.get(2).contains("t_key"));
+    assertTrue(uploads.get(2).contains("\"c_key.d\":[1]"));
+  }
+
+  /** Netty read timeouts of long polls are reported as timeouts, other unchecked failures as I/O failures */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void etcdTimeout() throws Exception {
+    EtcdClient etcd = Mockito.mock(EtcdClient.class);
+    EtcdKeyGetRequest request = Mockito.mock(EtcdKeyGetRequest.class);
+    EtcdResponsePromise<EtcdKeysResponse> promise = Mockito.mock(EtcdResponsePromise.class);
+    when(etcd.get(Mockito.anyString())).thenReturn(request);
+    when(request.waitForChange(Mockito.anyLong())).thenReturn(request);
+    when(request.timeout(Mockito.anyLong(), Mockito.any(TimeUnit.class))).thenReturn(request);
+    when(request.send()).thenReturn(promise);
+    when(promise.getException()).thenReturn(ReadTimeoutException.INSTANCE);
+    Mockito.doAnswer(invocation -> {
+      ((ResponsePromise.IsSimplePromiseResponseHandler<EtcdKeysResponse>) invocation.getArguments()[0])
+          .onResponse(promise);
+      return null;
+    }).when(promise).addListener(Mockito.any(ResponsePromise.IsSimplePromiseResponseHandler.class));
+
+    EtcdAccess access = new EtcdAccess(etcd, "service", "client");
+    try {
+      access.waitForConfig(1, 60);
+      throw new AssertionError("Expected timeout");
+    } catch (TimeoutException e) {
+      assertThat(e.getCause() == ReadTimeoutException.INSTANCE, is(true));
+    }
+
+    CompletableFuture<String> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new IllegalStateException("closed"));
+    try {
+      EtcdAccess.await(failed);
+      throw new AssertionError("Expected I/O failure");
+    } catch (IOException e) {
+      assertThat(e.getCause().getMessage(), is("closed"));
+    }
+  }
+
+  /** Background work runs on named daemon threads, virtual threads when running the multi-release jar on Java 21 */
+  @Test
+  public void backgroundThreads() throws Exception {
+    ThreadFactory factory = BackgroundThreads.factory("worker");
+    Thread first = factory.newThread(() -> { });
+    Thread second = factory.newThread(() -> { });
+
+    assertThat(first.getName(), is("worker"));
+    assertThat(second.getName(), is("worker-1"));
+    assertTrue(first.isDaemon());
+    assertThat(BackgroundThreads.executor().submit(() -> Thread.currentThread().isDaemon()).get(), is(true));
+  }
+
+  /** Heartbeats keep client data alive between metric uploads, expired client data is uploaded again in full */
+  @Test
+  public void heartbeat() throws Exception {
+    cCentral.setMetricInterval(600);
+    cCentral.setHeartbeatInterval(60);
+    cCentral.setConfigCheckInterval(100000);
+    cCentral.setDeltaUploads(10);
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6001), ZoneOffset.UTC));
+    cCentral.refresh();
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6030), ZoneOffset.UTC));
+    cCentral.refresh();
+    verify(client, never()).heartbeat();
+
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6061), ZoneOffset.UTC));
+    cCentral.refresh();
+    verify(client).heartbeat();
+    verify(client, times(1)).sendClientInfo(Mockito.anyString());
+
+    doThrow(new EtcdException(EtcdErrorCode.KeyNotFound, "Key not found", null, 0L) { }).when(client).heartbeat();
+    cCentral.setClock(Clock.fixed(Instant.ofEpochSecond(6122), ZoneOffset.UTC));
+    cCentral.refresh();
+    verify(client, times(2)).heartbeat();
+    verify(client, times(2)).sendClientInfo(stringCaptor.capture());
+    assertTrue(stringCaptor.getValue().contains("\"full\":\"1\""));
+    // Client metrics are uploaded only once a registry has been set
+    assertTrue(!stringCaptor.getValue().contains("\"i_"));
+  }
+
+  /** Streamed client data is the same json document ObjectMapper wrote from boxed collections */
+  @Test
+  public void clientDataWriterMatchesMapper() throws Exception {
+    AtomicLong millis = new AtomicLong(0);
+    Map<String, Object> clientData = new LinkedHashMap<>();
+    clientData.put("ts", "120");
+    clientData.put("v", "unknown");
+    clientData.put("hostname", "host \"quoted\" \\ back\nline \u00e4\u20ac");
+    clientData.put("started", 1600000000);
+    clientData.put("k_missing", null);
+
+    ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    Counter requests = new Counter(millis::get, 60000);
+    counters.put("requests", requests);
+    Map<String, CounterGroups> counterGroups = new LinkedHashMap<>();
+    CounterGroups groups = new CounterGroups("errors", counters, () -> new Counter(millis::get, 60000), () -> 1,
+        () -> { });
+    counterGroups.put("errors", groups);
+    requests.increment(3);
+    groups.group("a").increment(2);
+    groups.overflow("b", 5);
+    groups.overflow("c\"d", 1);
+    millis.set(60000);
+    requests.increment(4);
+
+    Map<String, IntervalRecorder> histograms = new LinkedHashMap<>();
+    IntervalRecorder latency = new IntervalRecorder();
+    IntervalRecorder oldLatency = new IntervalRecorder();
+    histograms.put("latency", latency);
+    histograms.put("idle", new IntervalRecorder());
+    for (int i = 1; i <= 10; i++) {
+      latency.update(i, TimeUnit.MILLISECONDS);
+      oldLatency.update(i, TimeUnit.MILLISECONDS);
+    }
+    Map<String, double[]> internal = new LinkedHashMap<>();
+    internal.put("i_uploads", new double[]{1, 0.5});
+    long now = 130000;
+
+    // Old serialization: boxed collections added to the client data map
+    Map<String, Object> payload = new LinkedHashMap<>(clientData);
+    long[] windows = new long[Counter.WINDOWS];
+    for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+      int count = entry.getValue().completed(entry.getValue().window(now), windows);
+      LinkedList<Long> values = new LinkedList<>();
+      for (int i = 0; i < count; i++) {
+        values.add(windows[i]);
+      }
+      payload.put("c_" + entry.getKey(), values);
+    }
+    Map<String, Long> heavyHitters = new LinkedHashMap<>();
+    heavyHitters.put("b", 5L);
+    heavyHitters.put("c\"d", 1L);
+    payload.put("t_errors", heavyHitters);
+    double[] percentiles = new double[4];
+    oldLatency.snapshot(new double[]{0.75, 0.95, 0.99, 0.5}, percentiles, now);
+    LinkedList<Double> latencies = new LinkedList<>();
+    for (double percentile : percentiles) {
+      latencies.add(percentile);
+    }
+    payload.put("h_latency", latencies);
+    LinkedList<Double> uploads = new LinkedList<>();
+    uploads.add(1.0);
+    uploads.add(0.5);
+    payload.put("i_uploads", uploads);
+    String expected = MAPPER.writeValueAsString(payload);
+
+    String json = new ClientDataWriter().write(clientData, counters, counterGroups, histograms, internal, null, now);
+    assertThat(MAPPER.readTree(json), is(MAPPER.readTree(expected)));
+    assertThat(MAPPER.readTree(json).get("c_errors.a").toString(), is("[2,0]"));
+  }
+}
@@ -0,0 +1,195 @@
+package io.github.slvwolf;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static io.github.slvwolf.EtcdStubs.config;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CallbackDispatcherTest {
+  private final List<Runnable> tasks = new ArrayList<>();
+  private final List<String> changes = new ArrayList<>();
+  private CallbackDispatcher dispatcher;
+  private SchemaItem item;
+
+  @Before
+  public void setUp() {
+    dispatcher = new CallbackDispatcher(() -> new ClientMetrics(new MetricRegistry(), false));
+    dispatcher.setExecutor(tasks::add);
+    item = new SchemaItem("limit", "title", "desc", "0", SchemaItem.Type.INTEGER);
+    item.addListener((key, oldValue, newValue) ->
+        changes.add(key + ":" + oldValue.getInt() + "->" + newValue.getInt()));
+  }
+
+  private static ConfigValue value(String value) {
+    return ConfigValue.parse("limit", SchemaItem.Type.INTEGER, value);
+  }
+
+  /** Changes waiting for delivery are merged, listeners get the value they last saw and the latest value */
+  @Test
+  public void mergedChanges() {
+    dispatcher.dispatch(item, value("0"), value("1"));
+    dispatcher.dispatch(item, value("1"), value("2"));
+    assertThat(tasks.size(), is(1));
+    tasks.remove(0).run();
+    assertThat(changes, is(Collections.singletonList("limit:0->2")));
+
+    dispatcher.dispatch(item, value("2"), value("3"));
+    dispatcher.dispatch(item, value("3"), value("2"));
+    tasks.remove(0).run();
+    assertThat(changes.size(), is(1));
+  }
+
+  /** Changes arriving while listeners run are delivered by the same task after the running one */
+  @Test
+  public void changeDuringDelivery() {
+    item.addListener((key, oldValue, newValue) -> {
+      if (newValue.getInt() == 1) {
+        dispatcher.dispatch(item, value("1"), value("2"));
+      }
+    });
+    dispatcher.dispatch(item, value("0"), value("1"));
+    tasks.remove(0).run();
+
+    assertThat(tasks.isEmpty(), is(true));
+    assertThat(changes, is(Arrays.asList("limit:0->1", "limit:1->2")));
+  }
+
+  /** Changes rejected by the executor are delivered on the calling thread */
+  @Test
+  public void rejected() {
+    dispatcher.setExecutor(task -> {
+      throw new RejectedExecutionException("shut down");
+    });
+    dispatcher.dispatch(item, value("0"), value("1"));
+    assertThat(changes, is(Collections.singletonList("limit:0->1")));
+  }
+
+  /** Listeners run on the callback executor of the client, merged changes are delivered once with typed values */
+  @Test
+  public void clientCallbackExecutor() throws Exception {
+    EtcdAccess client = EtcdStubs.etcdAccess();
+    CCEtcdClient cCentral = new CCEtcdClient(client);
+    cCentral.setCallbackExecutor(tasks::add);
+    cCentral.setConfigCheckInterval(10);
+    cCentral.addIntField("limit", "title", "desc", 0);
+    cCentral.addListener("limit", (key, oldValue, newValue) ->
+        changes.add(key + ":" + oldValue.getInt() + "->" + newValue.getInt()));
+    when(client.fetchConfigVersioned()).thenReturn(
+        config("{\"limit\": {\"value\": \"1\"}}"),
+        config("{\"limit\": {\"value\": \"2\"}}"),
+        config("{\"limit\": {\"value\": \"3\"}}"),
+        config("{\"limit\": {\"value\": \"4\"}}"));
+    for (int i = 0; i < 4; i++) {
+      cCentral.setClock(Clock.offset(Clock.systemUTC(), Duration.ofSeconds(20 * i)));
+      cCentral.refresh();
+    }
+    assertThat(cCentral.getConfigInt("limit"), is(4));
+    assertThat(changes.isEmpty(), is(true));
+    assertThat(tasks.size(), is(1));
+
+    tasks.remove(0).run();
+    assertThat(changes, is(Collections.singletonList("limit:1->4")));
+  }
+
+  /**
+   * Listeners run on background threads after the refresh lock is released, a blocked listener does not stall
+   * refreshes or schema changes
+   */
+  @Test
+  public void blockedListener() throws Exception {
+    EtcdAccess client = EtcdStubs.etcdAccess();
+    CCEtcdClient cCentral = new CCEtcdClient(client);
+    when(client.fetchConfigVersioned()).thenReturn(config("{\"bool\": {\"value\": \"1\"}}"));
+    cCentral.setConfigCheckInterval(-1);
+    cCentral.addBooleanField("bool", "title", "description", false);
+    CountDownLatch release = new CountDownLatch(1);
+    BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+    cCentral.addListener("bool", (key, oldValue, newValue) -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      delivered.add(oldValue + "->" + newValue);
+    });
+    cCentral.refresh();
+
+    when(client.fetchConfigVersioned()).thenReturn(config("{\"bool\": {\"value\": \"0\"}}"));
+    cCentral.refresh();
+    cCentral.refresh();
+    cCentral.addField("other", "title", "description", "def");
+    assertThat(delivered.isEmpty(), is(true));
+
+    release.countDown();
+    assertThat(delivered.poll(10, TimeUnit.SECONDS), is("1->0"));
+  }
+
+  /** Listeners run on the own callback thread of the client, blocked listeners do not hold up Etcd I/O threads */
+  @Test
+  public void blockedListenerDoesNotDelayRefresh() throws Exception {
+    EtcdAccess client = EtcdStubs.etcdAccess();
+    CCEtcdClient cCentral = new CCEtcdClient(client);
+    cCentral.setConfigCheckInterval(10);
+    cCentral.setMetricInterval(1000);
+    cCentral.addField("a", "title", "desc", "def");
+    cCentral.addField("b", "title", "desc", "def");
+    cCentral.addField("key", "title", "desc", "def");
+    CountDownLatch release = new CountDownLatch(1);
+    BlockingQueue<String> threads = new LinkedBlockingQueue<>();
+    ConfigListener blocking = (key, oldValue, newValue) -> {
+      threads.add(Thread.currentThread().getName());
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    };
+    cCentral.addListener("a", blocking);
+    cCentral.addListener("b", blocking);
+    when(client.fetchConfigVersioned())
+        .thenReturn(config("{\"a\": {\"value\": \"1\"}, \"b\": {\"value\": \"1\"}}"))
+        .thenReturn(config("{\"a\": {\"value\": \"2\"}, \"b\": {\"value\": \"2\"}}"))
+        .thenThrow(new IOException("down"));
+    when(client.fetchConfigVersionedAsync()).thenReturn(
+        CompletableFuture.completedFuture(new VersionedValue("{\"key\": {\"value\": \"fresh\"}}", 5, 5)));
+    for (int i = 0; i < 3; i++) {
+      cCentral.setClock(Clock.offset(Clock.systemUTC(), Duration.ofSeconds(20 * i)));
+      cCentral.refresh();
+    }
+    assertThat(threads.poll(10, TimeUnit.SECONDS).startsWith("ccentral-callbacks"), is(true));
+
+    // Etcd is down, configuration is fetched on the shared I/O threads while both listeners wait
+    cCentral.setClock(Clock.offset(Clock.systemUTC(), Duration.ofSeconds(60)));
+    cCentral.refresh();
+    verify(client).fetchConfigVersionedAsync();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!"fresh".equals(cCentral.getConfig("key")) && System.nanoTime() < deadline) {
+      Thread.yield();
+    }
+    assertThat(cCentral.getConfig("key"), is("fresh"));
+    assertThat(threads.isEmpty(), is(true));
+
+    release.countDown();
+    assertThat(threads.poll(10, TimeUnit.SECONDS).startsWith("ccentral-callbacks"), is(true));
+    cCentral.close();
+  }
+}
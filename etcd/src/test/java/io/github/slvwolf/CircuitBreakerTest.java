@@ -0,0 +1,53 @@
+package io.github.slvwolf;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class CircuitBreakerTest {
+  private final AtomicLong millis = new AtomicLong(1000);
+  private final CircuitBreaker breaker = new CircuitBreaker(millis::get);
+
+  /** Failure opens the breaker until the backoff has passed, then one probe is let through */
+  @Test
+  public void probeAfterBackoff() {
+    assertTrue(breaker.allowRequest());
+    assertTrue(breaker.onFailure());
+    assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+    assertThat(breaker.allowRequest(), is(false));
+
+    millis.addAndGet(CircuitBreaker.MIN_BACKOFF_MILLIS);
+    assertTrue(breaker.allowRequest());
+    assertThat(breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+    assertThat(breaker.allowRequest(), is(false));
+
+    breaker.onSuccess();
+    assertTrue(breaker.isClosed());
+    assertTrue(breaker.allowRequest());
+  }
+
+  /** Failed probes double the backoff up to the maximum, late results of earlier requests do not extend it */
+  @Test
+  public void backoff() {
+    breaker.onFailure();
+    assertThat(breaker.onFailure(), is(false));
+    long backoff = CircuitBreaker.MIN_BACKOFF_MILLIS;
+    for (int i = 0; i < 12; i++) {
+      millis.addAndGet(backoff);
+      assertTrue(breaker.allowRequest());
+      assertThat(breaker.onFailure(), is(false));
+      backoff = Math.min(CircuitBreaker.MAX_BACKOFF_MILLIS, backoff * 2);
+      // Jitter waits at least half of the backoff
+      millis.addAndGet(backoff / 2 - 1);
+      assertThat(breaker.allowRequest(), is(false));
+      millis.addAndGet(-(backoff / 2 - 1));
+    }
+    assertThat(backoff, is(CircuitBreaker.MAX_BACKOFF_MILLIS));
+    millis.addAndGet(backoff);
+    assertTrue(breaker.allowRequest());
+  }
+}
@@ -0,0 +1,82 @@
+package io.github.slvwolf;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ConfigCacheTest {
+  private Path dir;
+  private Path file;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("ccentral");
+    file = dir.resolve("config.json");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(file);
+    Files.deleteIfExists(dir);
+  }
+
+  /** Stored configuration is loaded with its index */
+  @Test
+  public void storeAndLoad() {
+    new ConfigCache(file).store("{\"key\": {\"value\": \"cached\"}}", 7);
+
+    VersionedValue loaded = new ConfigCache(file).load();
+    assertThat(loaded.getValue(), is("{\"key\": {\"value\": \"cached\"}}"));
+    assertThat(loaded.getModifiedIndex(), is(7L));
+    assertThat(Files.exists(dir.resolve("config.json.tmp")), is(false));
+  }
+
+  /** File is written only when the configuration differs from the stored one */
+  @Test
+  public void unchangedNotWritten() throws Exception {
+    ConfigCache cache = new ConfigCache(file);
+    cache.store("first", 1);
+    Files.delete(file);
+    cache.store("first", 2);
+    assertThat(Files.exists(file), is(false));
+
+    cache.store("second", 3);
+    assertThat(new ConfigCache(file).load().getValue(), is("second"));
+  }
+
+  /** Asynchronous writes waiting for the executor are merged, only the latest configuration is written */
+  @Test
+  public void storeAsync() {
+    ConfigCache cache = new ConfigCache(file);
+    List<Runnable> tasks = new ArrayList<>();
+    cache.storeAsync("first", 1, tasks::add);
+    cache.storeAsync("second", 2, tasks::add);
+    assertThat(tasks.size(), is(1));
+    assertThat(Files.exists(file), is(false));
+
+    tasks.remove(0).run();
+    assertThat(new ConfigCache(file).load().getModifiedIndex(), is(2L));
+    cache.storeAsync("third", 3, tasks::add);
+    assertThat(tasks.size(), is(1));
+  }
+
+  /** Missing and unreadable caches are ignored */
+  @Test
+  public void invalidCache() throws Exception {
+    assertThat(new ConfigCache(file).load(), nullValue());
+    Files.write(file, "{broken".getBytes(StandardCharsets.UTF_8));
+    assertThat(new ConfigCache(file).load(), nullValue());
+    Files.write(file, "{\"index\": 1}".getBytes(StandardCharsets.UTF_8));
+    assertThat(new ConfigCache(file).load(), nullValue());
+  }
+}
@@ -0,0 +1,38 @@
+package io.github.slvwolf;
+
+import org.mockito.Mockito;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Mocked Etcd access shared by the client tests. Writes of the asynchronous API complete right away, reads return
+ * nothing unless a test stubs them.
+ */
+final class EtcdStubs {
+  private EtcdStubs() {
+  }
+
+  static EtcdAccess etcdAccess() {
+    EtcdAccess access = Mockito.mock(EtcdAccess.class);
+    stubAsync(access);
+    return access;
+  }
+
+  static void stubAsync(EtcdAccess access) {
+    when(access.fetchSchemaAsync()).thenReturn(CompletableFuture.completedFuture(null));
+    when(access.sendSchemaAsync(Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(null));
+    when(access.sendSchemaAsync(Mockito.anyString(), Mockito.anyLong()))
+        .thenReturn(CompletableFuture.completedFuture(null));
+    when(access.sendClientInfoAsync(Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(null));
+    when(access.sendClientDeltaAsync(Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(null));
+    when(access.sendServiceInfoAsync(Mockito.anyString(), Mockito.anyString()))
+        .thenReturn(CompletableFuture.completedFuture(null));
+    when(access.heartbeatAsync()).thenReturn(CompletableFuture.completedFuture(null));
+  }
+
+  static VersionedValue config(String data) {
+    return new VersionedValue(data, 0, 0);
+  }
+}
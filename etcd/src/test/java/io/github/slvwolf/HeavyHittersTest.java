@@ -0,0 +1,50 @@
+package io.github.slvwolf;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class HeavyHittersTest {
+  private final HeavyHitters heavyHitters = new HeavyHitters();
+
+  /** Counts are drained largest first and kept until acknowledged */
+  @Test
+  public void drainAndAcknowledge() {
+    heavyHitters.offer("a", 1);
+    heavyHitters.offer("b", 5);
+    heavyHitters.offer("a", 1);
+
+    List<Map.Entry<String, Long>> counts = heavyHitters.drain();
+    assertThat(counts.get(0).getKey(), is("b"));
+    assertThat(counts.get(1).getValue(), is(2L));
+    heavyHitters.offer("a", 3);
+    // Upload failed, counts are merged with the next interval
+    counts = heavyHitters.drain();
+    assertThat(counts.get(0).getValue(), is(5L));
+    assertThat(counts.get(1).getValue(), is(5L));
+
+    heavyHitters.acknowledge();
+    assertThat(heavyHitters.drain().isEmpty(), is(true));
+  }
+
+  /** New group over the capacity replaces the smallest one and starts from its count */
+  @Test
+  public void capacity() {
+    for (int i = 0; i < HeavyHitters.CAPACITY; i++) {
+      heavyHitters.offer("g" + i, 10 + 2 * i);
+    }
+    heavyHitters.offer("new", 1);
+
+    List<Map.Entry<String, Long>> counts = heavyHitters.drain();
+    assertThat(counts.size(), is(HeavyHitters.CAPACITY));
+    assertThat(counts.get(counts.size() - 1).getKey(), is("new"));
+    assertThat(counts.get(counts.size() - 1).getValue(), is(11L));
+    for (Map.Entry<String, Long> count : counts) {
+      assertThat(count.getKey().equals("g0"), is(false));
+    }
+  }
+}
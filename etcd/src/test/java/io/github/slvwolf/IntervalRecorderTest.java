@@ -0,0 +1,78 @@
+package io.github.slvwolf;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class IntervalRecorderTest {
+  private static final double[] QUANTILES = {0.5, 0.99};
+  private final IntervalRecorder recorder = new IntervalRecorder();
+  private final double[] result = new double[QUANTILES.length];
+
+  /** Percentiles are in milliseconds and cover only the values since the last acknowledged upload */
+  @Test
+  public void intervals() {
+    for (int i = 1; i <= 3; i++) {
+      recorder.update(i, TimeUnit.MILLISECONDS);
+    }
+
+    assertThat(recorder.snapshot(QUANTILES, result, 1), is(3L));
+    assertThat(result[0], is(2.0));
+    assertThat(result[1], is(3.0));
+    recorder.acknowledge(1);
+    recorder.update(500, TimeUnit.MICROSECONDS);
+    assertThat(recorder.snapshot(QUANTILES, result, 2), is(1L));
+    assertThat(result[0], is(0.5));
+    recorder.acknowledge(2);
+    assertThat(recorder.snapshot(QUANTILES, result, 3), is(0L));
+    assertThat(result[0], is(0.0));
+  }
+
+  /** Intervals of failed uploads are reported with the next one, acknowledging an older upload keeps them */
+  @Test
+  public void failedUpload() {
+    for (int i = 1; i <= 3; i++) {
+      recorder.update(i, TimeUnit.MILLISECONDS);
+    }
+    recorder.snapshot(QUANTILES, result, 1);
+    recorder.update(4, TimeUnit.MILLISECONDS);
+
+    assertThat(recorder.snapshot(QUANTILES, result, 2), is(4L));
+    assertThat(result[0], is(2.5));
+    recorder.acknowledge(1);
+    assertThat(recorder.snapshot(QUANTILES, result, 3), is(4L));
+    recorder.acknowledge(3);
+    assertThat(recorder.snapshot(QUANTILES, result, 4), is(0L));
+  }
+
+  /** Intervals over the sample size keep a sample of the values while counting all of them */
+  @Test
+  public void sampledInterval() {
+    for (int i = 0; i < IntervalRecorder.SAMPLE_SIZE * 4; i++) {
+      recorder.update(7, TimeUnit.MILLISECONDS);
+    }
+
+    assertThat(recorder.snapshot(QUANTILES, result, 1), is(IntervalRecorder.SAMPLE_SIZE * 4L));
+    assertThat(result[0], is(7.0));
+    assertThat(result[1], is(7.0));
+  }
+
+  /** Merged samples keep values of each interval in proportion to the values recorded during it */
+  @Test
+  public void mergedSamples() {
+    for (int i = 0; i < IntervalRecorder.SAMPLE_SIZE * 4; i++) {
+      recorder.update(7, TimeUnit.MILLISECONDS);
+    }
+    recorder.snapshot(QUANTILES, result, 1);
+    for (int i = 0; i < IntervalRecorder.SAMPLE_SIZE * 4; i++) {
+      recorder.update(9, TimeUnit.MILLISECONDS);
+    }
+
+    assertThat(recorder.snapshot(QUANTILES, result, 2), is(IntervalRecorder.SAMPLE_SIZE * 8L));
+    assertThat(result[0], is(8.0));
+    assertThat(result[1], is(9.0));
+  }
+}
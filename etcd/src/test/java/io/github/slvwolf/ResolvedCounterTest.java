@@ -0,0 +1,80 @@
+package io.github.slvwolf;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ResolvedCounterTest {
+  private final AtomicLong millis = new AtomicLong(0);
+  private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+  private final AtomicInteger cached = new AtomicInteger();
+  private ResolvedCounter root;
+
+  @Before
+  public void setUp() {
+    CounterGroups groups = new CounterGroups("requests", counters, () -> new Counter(millis::get, 60000), () -> 0,
+        () -> { });
+    root = new ResolvedCounter(groups, "requests", cached, () -> { });
+  }
+
+  /** Groups are filtered into the key, handles of the same group are cached */
+  @Test
+  public void groups() {
+    ResolvedCounter handle = root.withGroup("a.pi").withGroup("2 00");
+    assertThat(handle.getKey(), is("requests.api.2_00"));
+    assertTrue(handle == root.withGroups("a.pi", "2 00"));
+    handle.increment(2);
+    root.withGroup("api").withGroup("2_00").increment();
+
+    millis.set(60000);
+    long[] windows = new long[Counter.WINDOWS];
+    int count = counters.get("requests.api.2_00").completed(1, windows);
+    assertThat(windows[count - 1], is(3L));
+    assertThat(cached.get(), is(4));
+  }
+
+  /** Handles over the cache limit work but are not cached */
+  @Test
+  public void cacheLimit() {
+    for (int i = 0; i < ResolvedCounter.MAX_CACHED_HANDLES; i++) {
+      root.withGroup(Integer.toString(i));
+    }
+    ResolvedCounter uncached = root.withGroup("uncached");
+    assertTrue(uncached != root.withGroup("uncached"));
+    assertTrue(root.withGroup("0") == root.withGroup("0"));
+    assertThat(cached.get(), is(ResolvedCounter.MAX_CACHED_HANDLES));
+  }
+
+  /** Updating a cached group does not allocate */
+  @Test
+  public void cachedGroupAllocation() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+    long thread = Thread.currentThread().getId();
+    for (int i = 0; i < 20_000; i++) {
+      root.withGroup("api").withGroup("200").increment();
+      threads.getThreadAllocatedBytes(thread);
+    }
+
+    // Reading the allocated bytes may allocate itself, measured without updates in between
+    long start = threads.getThreadAllocatedBytes(thread);
+    long overhead = threads.getThreadAllocatedBytes(thread) - start;
+    start = threads.getThreadAllocatedBytes(thread);
+    for (int i = 0; i < 1000; i++) {
+      root.withGroup("api").withGroup("200").increment();
+    }
+    long allocated = threads.getThreadAllocatedBytes(thread) - start - overhead;
+    assertThat(allocated, is(0L));
+  }
+}
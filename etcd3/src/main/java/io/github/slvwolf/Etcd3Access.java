@@ -0,0 +1,590 @@
+package io.github.slvwolf;
+
+import com.google.protobuf.ByteString;
+import io.etcd.jetcd.api.Compare;
+import io.etcd.jetcd.api.Event;
+import io.etcd.jetcd.api.KVGrpc;
+import io.etcd.jetcd.api.KeyValue;
+import io.etcd.jetcd.api.LeaseGrantRequest;
+import io.etcd.jetcd.api.LeaseGrantResponse;
+import io.etcd.jetcd.api.LeaseGrpc;
+import io.etcd.jetcd.api.LeaseKeepAliveRequest;
+import io.etcd.jetcd.api.LeaseKeepAliveResponse;
+import io.etcd.jetcd.api.LeaseRevokeRequest;
+import io.etcd.jetcd.api.LeaseRevokeResponse;
+import io.etcd.jetcd.api.PutRequest;
+import io.etcd.jetcd.api.PutResponse;
+import io.etcd.jetcd.api.RangeRequest;
+import io.etcd.jetcd.api.RangeResponse;
+import io.etcd.jetcd.api.RequestOp;
+import io.etcd.jetcd.api.TxnRequest;
+import io.etcd.jetcd.api.TxnResponse;
+import io.etcd.jetcd.api.WatchCreateRequest;
+import io.etcd.jetcd.api.WatchGrpc;
+import io.etcd.jetcd.api.WatchRequest;
+import io.etcd.jetcd.api.WatchResponse;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import mousio.etcd4j.responses.EtcdAuthenticationException;
+import mousio.etcd4j.responses.EtcdErrorCode;
+import mousio.etcd4j.responses.EtcdException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Etcd v3 backend over gRPC using the same keys as {@link EtcdAccess}. Client data is written with one lease per
+ * instance which is kept alive over a stream, configuration changes are received from a single watch stream and schema
+ * is replaced with a transaction. Errors are reported with the matching v2 error codes.
+ */
+public class Etcd3Access implements EtcdOperations {
+  private static final Logger LOG = LoggerFactory.getLogger(Etcd3Access.class);
+  private static final ScheduledExecutorService KEEP_ALIVE =
+      Executors.newSingleThreadScheduledExecutor(BackgroundThreads.factory("ccentral-lease"));
+  private static final String GRANT_LEASE = "grant_lease";
+  private final ManagedChannel channel;
+  private final boolean ownsChannel;
+  private final KVGrpc.KVStub kv;
+  private final LeaseGrpc.LeaseStub lease;
+  private final WatchGrpc.WatchStub watch;
+  private final String serviceId;
+  private volatile String clientId;
+  private volatile ClientMetrics metrics;
+  private volatile String lastClientInfo;
+  private final Object leaseLock = new Object();
+  private CompletableFuture<Long> instanceLease;
+  private LeaseKeeper keeper;
+  private boolean closed;
+  private CompletableFuture<Long> serviceInfoLease;
+  private long serviceInfoLeaseGranted;
+  private final Object watchLock = new Object();
+  private ConfigWatch configWatch;
+
+  /**
+   * @param channel Channel to Etcd, left open when this is closed.
+   */
+  public Etcd3Access(ManagedChannel channel, String serviceId, String clientId) {
+    this(channel, false, serviceId, clientId);
+  }
+
+  private Etcd3Access(ManagedChannel channel, boolean ownsChannel, String serviceId, String clientId) {
+    this.channel = channel;
+    this.ownsChannel = ownsChannel;
+    this.kv = KVGrpc.newStub(channel);
+    this.lease = LeaseGrpc.newStub(channel);
+    this.watch = WatchGrpc.newStub(channel);
+    this.serviceId = serviceId;
+    this.clientId = clientId;
+  }
+
+  /**
+   * Connect to Etcd without TLS. The channel is closed when this is closed.
+   *
+   * @param target gRPC target, for example "localhost:2379" or "dns:///etcd.example.com:2379".
+   */
+  public static Etcd3Access connect(String target, String serviceId, String clientId) {
+    return new Etcd3Access(ManagedChannelBuilder.forTarget(target).usePlaintext().build(), true, serviceId, clientId);
+  }
+
+  @Override
+  public void setClientId(String clientId) {
+    this.clientId = clientId;
+  }
+
+  @Override
+  public void setMetrics(ClientMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void sendClientInfo(String json) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    EtcdAccess.await(sendClientInfoAsync(json));
+  }
+
+  @Override
+  public void sendClientDelta(String json) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    EtcdAccess.await(sendClientDeltaAsync(json));
+  }
+
+  @Override
+  public void heartbeat() throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    EtcdAccess.await(heartbeatAsync());
+  }
+
+  @Override
+  public String fetchConfig() throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    return EtcdAccess.await(fetchConfigAsync());
+  }
+
+  @Override
+  public VersionedValue fetchConfigVersioned() throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    return EtcdAccess.await(fetchConfigVersionedAsync());
+  }
+
+  /**
+   * Wait for the next configuration change. Consecutive calls continuing from the previous change share one watch
+   * stream, the stream is recreated when the index does not continue from it or after it failed.
+   */
+  @Override
+  public VersionedValue waitForConfig(long waitIndex, int timeoutSeconds) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    ConfigWatch current;
+    synchronized (watchLock) {
+      if (configWatch == null || configWatch.failed || configWatch.nextRevision != waitIndex) {
+        if (configWatch != null) {
+          configWatch.cancel();
+        }
+        configWatch = new ConfigWatch(waitIndex);
+      }
+      current = configWatch;
+    }
+    return current.next(timeoutSeconds);
+  }
+
+  @Override
+  public void sendSchema(String schemaJson) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    EtcdAccess.await(sendSchemaAsync(schemaJson));
+  }
+
+  @Override
+  public VersionedValue fetchSchema() throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    return EtcdAccess.await(fetchSchemaAsync());
+  }
+
+  @Override
+  public void sendSchema(String schemaJson, long prevIndex) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    EtcdAccess.await(sendSchemaAsync(schemaJson, prevIndex));
+  }
+
+  @Override
+  public void sendServiceInfo(String key, String data) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+    EtcdAccess.await(sendServiceInfoAsync(key, data));
+  }
+
+  @Override
+  public CompletableFuture<Void> sendClientInfoAsync(String json) {
+    lastClientInfo = json;
+    return instanceLease().thenCompose(leaseId ->
+        put(EtcdAccess.PUT_CLIENT, String.format(EtcdAccess.LOCATION_CLIENTS, serviceId, clientId), json, leaseId)
+            .whenComplete((ignored, error) -> {
+              if (error != null && Status.fromThrowable(error).getCode() == Status.Code.NOT_FOUND) {
+                // Lease expired while Etcd was not reachable, next upload grants a new one
+                leaseLost(leaseId, false);
+              }
+            }));
+  }
+
+  @Override
+  public CompletableFuture<Void> sendClientDeltaAsync(String json) {
+    return instanceLease().thenCompose(leaseId ->
+        put(EtcdAccess.PUT_CLIENT_DELTA, String.format(EtcdAccess.LOCATION_CLIENT_DELTAS, serviceId, clientId), json,
+            leaseId));
+  }
+
+  /**
+   * Instance lease is refreshed by its keep-alive stream, this only reports if the lease has been lost.
+   */
+  @Override
+  public CompletableFuture<Void> heartbeatAsync() {
+    synchronized (leaseLock) {
+      if (instanceLease != null && !instanceLease.isCompletedExceptionally()) {
+        return CompletableFuture.completedFuture(null);
+      }
+    }
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    future.completeExceptionally(new Etcd3Exception(EtcdErrorCode.KeyNotFound, "Instance lease is not held", 0));
+    return future;
+  }
+
+  @Override
+  public CompletableFuture<String> fetchConfigAsync() {
+    return fetchConfigVersionedAsync().thenApply(VersionedValue::getValue);
+  }
+
+  @Override
+  public CompletableFuture<VersionedValue> fetchConfigVersionedAsync() {
+    String key = String.format(EtcdAccess.LOCATION_CONFIG, serviceId);
+    return range(EtcdAccess.GET_CONFIG, key).thenApply(response -> {
+      if (response.getKvsCount() == 0) {
+        throw new CompletionException(new Etcd3Exception(EtcdErrorCode.KeyNotFound, "Key not found: " + key,
+            response.getHeader().getRevision()));
+      }
+      return toVersionedValue(response.getKvs(0), response.getHeader().getRevision());
+    });
+  }
+
+  @Override
+  public CompletableFuture<Void> sendSchemaAsync(String schemaJson) {
+    return put(EtcdAccess.PUT_SCHEMA, String.format(EtcdAccess.LOCATION_SCHEMA, serviceId), schemaJson, 0);
+  }
+
+  @Override
+  public CompletableFuture<VersionedValue> fetchSchemaAsync() {
+    return range(EtcdAccess.GET_SCHEMA, String.format(EtcdAccess.LOCATION_SCHEMA, serviceId)).thenApply(response ->
+        response.getKvsCount() == 0 ? null : toVersionedValue(response.getKvs(0), response.getHeader().getRevision()));
+  }
+
+  /**
+   * Replace schema in a transaction comparing the modification revision of the stored schema.
+   */
+  @Override
+  public CompletableFuture<Void> sendSchemaAsync(String schemaJson, long prevIndex) {
+    ByteString key = bytes(String.format(EtcdAccess.LOCATION_SCHEMA, serviceId));
+    TxnRequest request = TxnRequest.newBuilder()
+        .addCompare(Compare.newBuilder()
+            .setKey(key)
+            .setTarget(Compare.CompareTarget.MOD)
+            .setResult(Compare.CompareResult.EQUAL)
+            .setModRevision(prevIndex))
+        .addSuccess(RequestOp.newBuilder()
+            .setRequestPut(PutRequest.newBuilder().setKey(key).setValue(bytes(schemaJson))))
+        .build();
+    return this.<TxnResponse>call(EtcdAccess.PUT_SCHEMA, observer -> kv().txn(request, observer))
+        .thenApply(response -> {
+          if (!response.getSucceeded()) {
+            throw new CompletionException(new Etcd3Exception(EtcdErrorCode.TestFailed,
+                "Schema was modified after revision " + prevIndex, response.getHeader().getRevision()));
+          }
+          return null;
+        });
+  }
+
+  /**
+   * Service info shares one lease which is replaced after half of its time to live, so every write lives at least
+   * half of {@link EtcdAccess#SERVICE_INFO_TTL}.
+   */
+  @Override
+  public CompletableFuture<Void> sendServiceInfoAsync(String key, String data) {
+    return serviceInfoLease().thenCompose(leaseId -> put(EtcdAccess.PUT_SERVICE_INFO,
+        String.format(EtcdAccess.LOCATION_SERVICE_INFO, serviceId, key), data, leaseId));
+  }
+
+  /**
+   * Revoke the instance lease so the instance is removed immediately, stop the configuration watch and close the
+   * channel if it was created by {@link #connect}.
+   */
+  @Override
+  public void close() {
+    CompletableFuture<Long> current;
+    synchronized (leaseLock) {
+      closed = true;
+      current = instanceLease;
+      instanceLease = null;
+      if (keeper != null) {
+        keeper.stop();
+        keeper = null;
+      }
+    }
+    lastClientInfo = null;
+    synchronized (watchLock) {
+      if (configWatch != null) {
+        configWatch.cancel();
+        configWatch = null;
+      }
+    }
+    if (current != null && current.isDone() && !current.isCompletedExceptionally()) {
+      LeaseRevokeRequest request = LeaseRevokeRequest.newBuilder().setID(current.join()).build();
+      this.<LeaseRevokeResponse>call(null, observer -> lease.withDeadlineAfter(EtcdAccess.TIMEOUT_SECONDS,
+          TimeUnit.SECONDS).leaseRevoke(request, observer));
+    }
+    if (ownsChannel) {
+      // Pending calls, like the revoke above, are completed before the channel terminates
+      channel.shutdown();
+    }
+  }
+
+  private CompletableFuture<Long> instanceLease() {
+    synchronized (leaseLock) {
+      if (instanceLease == null || instanceLease.isCompletedExceptionally()) {
+        instanceLease = grant(EtcdAccess.INSTANCE_TTL).thenApply(leaseId -> {
+          synchronized (leaseLock) {
+            if (!closed) {
+              keeper = new LeaseKeeper(leaseId);
+              keeper.start();
+            }
+          }
+          return leaseId;
+        });
+      }
+      return instanceLease;
+    }
+  }
+
+  private CompletableFuture<Long> serviceInfoLease() {
+    synchronized (leaseLock) {
+      long now = System.nanoTime();
+      if (serviceInfoLease == null || serviceInfoLease.isCompletedExceptionally()
+          || now - serviceInfoLeaseGranted > TimeUnit.SECONDS.toNanos(EtcdAccess.SERVICE_INFO_TTL / 2)) {
+        serviceInfoLeaseGranted = now;
+        serviceInfoLease = grant(EtcdAccess.SERVICE_INFO_TTL);
+      }
+      return serviceInfoLease;
+    }
+  }
+
+  private CompletableFuture<Long> grant(int ttlSeconds) {
+    LeaseGrantRequest request = LeaseGrantRequest.newBuilder().setTTL(ttlSeconds).build();
+    return this.<LeaseGrantResponse>call(GRANT_LEASE, observer -> lease.withDeadlineAfter(EtcdAccess.TIMEOUT_SECONDS,
+        TimeUnit.SECONDS).leaseGrant(request, observer))
+        .thenApply(LeaseGrantResponse::getID);
+  }
+
+  /**
+   * Forget the instance lease and write the last client data again with a new lease.
+   *
+   * @param rewrite True to write the client data right away.
+   */
+  private void leaseLost(long leaseId, boolean rewrite) {
+    synchronized (leaseLock) {
+      if (instanceLease == null || !instanceLease.isDone() || instanceLease.isCompletedExceptionally()
+          || instanceLease.join() != leaseId) {
+        return;
+      }
+      instanceLease = null;
+      if (keeper != null) {
+        keeper.stop();
+        keeper = null;
+      }
+    }
+    String json = lastClientInfo;
+    if (rewrite && json != null) {
+      LOG.warn("Instance lease {} expired, writing client data with a new lease", leaseId);
+      sendClientInfoAsync(json).whenComplete((ignored, error) -> {
+        if (error != null) {
+          LOG.warn("Failed to write client data with a new lease: {}", error.getMessage());
+        }
+      });
+    }
+  }
+
+  private CompletableFuture<Void> put(String operation, String key, String value, long leaseId) {
+    PutRequest request = PutRequest.newBuilder().setKey(bytes(key)).setValue(bytes(value)).setLease(leaseId).build();
+    return this.<PutResponse>call(operation, observer -> kv().put(request, observer)).thenApply(response -> null);
+  }
+
+  private CompletableFuture<RangeResponse> range(String operation, String key) {
+    RangeRequest request = RangeRequest.newBuilder().setKey(bytes(key)).build();
+    return call(operation, observer -> kv().range(request, observer));
+  }
+
+  private KVGrpc.KVStub kv() {
+    return kv.withDeadlineAfter(EtcdAccess.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Start an unary call, round trip is recorded with the operation unless it is null.
+   */
+  private <T> CompletableFuture<T> call(String operation, Consumer<StreamObserver<T>> call) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    long start = System.nanoTime();
+    call.accept(new StreamObserver<T>() {
+      @Override
+      public void onNext(T value) {
+        record(operation, start);
+        future.complete(value);
+      }
+
+      @Override
+      public void onError(Throwable error) {
+        record(operation, start);
+        future.completeExceptionally(translate(error));
+      }
+
+      @Override
+      public void onCompleted() {
+      }
+    });
+    return future;
+  }
+
+  private void record(String operation, long startNanos) {
+    ClientMetrics current = metrics;
+    if (operation != null && current != null) {
+      current.etcd(operation, startNanos);
+    }
+  }
+
+  /**
+   * Map gRPC status to the exceptions thrown by the v2 client.
+   */
+  private static Throwable translate(Throwable error) {
+    Status status = Status.fromThrowable(error);
+    switch (status.getCode()) {
+      case DEADLINE_EXCEEDED:
+        TimeoutException timeout = new TimeoutException(status.toString());
+        timeout.initCause(error);
+        return timeout;
+      case UNAUTHENTICATED:
+      case PERMISSION_DENIED:
+        return new EtcdAuthenticationException(status.toString());
+      default:
+        return new IOException(status.toString(), error);
+    }
+  }
+
+  private static VersionedValue toVersionedValue(KeyValue keyValue, long revision) {
+    return new VersionedValue(keyValue.getValue().toStringUtf8(), keyValue.getModRevision(), revision);
+  }
+
+  private static ByteString bytes(String value) {
+    return ByteString.copyFromUtf8(value);
+  }
+
+  /**
+   * Etcd error reported with the error code of the v2 API.
+   */
+  static final class Etcd3Exception extends EtcdException {
+    Etcd3Exception(int errorCode, String message, long index) {
+      super(errorCode, message, null, index);
+    }
+  }
+
+  /**
+   * Keep-alive stream of the instance lease, refreshed three times per time to live.
+   */
+  private final class LeaseKeeper implements StreamObserver<LeaseKeepAliveResponse> {
+    private final long leaseId;
+    private volatile StreamObserver<LeaseKeepAliveRequest> requests;
+    private ScheduledFuture<?> task;
+
+    private LeaseKeeper(long leaseId) {
+      this.leaseId = leaseId;
+    }
+
+    private void start() {
+      long period = EtcdAccess.INSTANCE_TTL / 3;
+      task = KEEP_ALIVE.scheduleAtFixedRate(this::keepAlive, period, period, TimeUnit.SECONDS);
+    }
+
+    private void stop() {
+      task.cancel(false);
+      StreamObserver<LeaseKeepAliveRequest> current = requests;
+      requests = null;
+      if (current != null) {
+        current.onCompleted();
+      }
+    }
+
+    private void keepAlive() {
+      StreamObserver<LeaseKeepAliveRequest> current = requests;
+      if (current == null) {
+        current = lease.leaseKeepAlive(this);
+        requests = current;
+      }
+      current.onNext(LeaseKeepAliveRequest.newBuilder().setID(leaseId).build());
+    }
+
+    @Override
+    public void onNext(LeaseKeepAliveResponse response) {
+      if (response.getTTL() <= 0) {
+        leaseLost(leaseId, true);
+      }
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      // Stream is opened again on the next keep-alive
+      requests = null;
+      LOG.warn("Lease keep-alive failed: {}", Status.fromThrowable(error));
+    }
+
+    @Override
+    public void onCompleted() {
+      requests = null;
+    }
+  }
+
+  /**
+   * Watch stream of the configuration key. Changes are queued until read with {@link #next}.
+   */
+  private final class ConfigWatch implements StreamObserver<WatchResponse> {
+    private final BlockingQueue<CompletableFuture<VersionedValue>> changes = new LinkedBlockingQueue<>();
+    private final StreamObserver<WatchRequest> requests;
+    private volatile long nextRevision;
+    private volatile boolean failed;
+
+    private ConfigWatch(long startRevision) {
+      nextRevision = startRevision;
+      requests = watch.watch(this);
+      requests.onNext(WatchRequest.newBuilder()
+          .setCreateRequest(WatchCreateRequest.newBuilder()
+              .setKey(bytes(String.format(EtcdAccess.LOCATION_CONFIG, serviceId)))
+              .setStartRevision(startRevision))
+          .build());
+    }
+
+    private VersionedValue next(int timeoutSeconds) throws IOException, EtcdAuthenticationException, TimeoutException, EtcdException {
+      CompletableFuture<VersionedValue> change;
+      try {
+        change = changes.poll(timeoutSeconds, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while watching configuration");
+      }
+      if (change == null) {
+        throw new TimeoutException("No configuration changes in " + timeoutSeconds + " seconds");
+      }
+      if (change.isCompletedExceptionally()) {
+        failed = true;
+      }
+      VersionedValue value = EtcdAccess.await(change);
+      nextRevision = value.getModifiedIndex() + 1;
+      return value;
+    }
+
+    private void cancel() {
+      ((ClientCallStreamObserver<WatchRequest>) requests).cancel("Watch no longer needed", null);
+    }
+
+    @Override
+    public void onNext(WatchResponse response) {
+      if (response.getCanceled()) {
+        if (response.getCompactRevision() > 0) {
+          fail(new Etcd3Exception(EtcdErrorCode.EventIndexCleared,
+              "Revision " + nextRevision + " is compacted", response.getCompactRevision()));
+        } else {
+          fail(new IOException("Configuration watch canceled: " + response.getCancelReason()));
+        }
+        return;
+      }
+      long revision = response.getHeader().getRevision();
+      for (Event event : response.getEventsList()) {
+        KeyValue keyValue = event.getKv();
+        String value = event.getType() == Event.EventType.DELETE ? null : keyValue.getValue().toStringUtf8();
+        changes.add(CompletableFuture.completedFuture(new VersionedValue(value, keyValue.getModRevision(), revision)));
+      }
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      if (Status.fromThrowable(error).getCode() != Status.Code.CANCELLED) {
+        fail(translate(error));
+      }
+    }
+
+    @Override
+    public void onCompleted() {
+      fail(new IOException("Configuration watch closed"));
+    }
+
+    private void fail(Throwable error) {
+      CompletableFuture<VersionedValue> change = new CompletableFuture<>();
+      change.completeExceptionally(error);
+      changes.add(change);
+    }
+  }
+}
@@ -0,0 +1,382 @@
+package io.github.slvwolf;
+
+import com.google.protobuf.ByteString;
+import io.etcd.jetcd.api.Compare;
+import io.etcd.jetcd.api.Event;
+import io.etcd.jetcd.api.KVGrpc;
+import io.etcd.jetcd.api.KeyValue;
+import io.etcd.jetcd.api.LeaseGrantRequest;
+import io.etcd.jetcd.api.LeaseGrantResponse;
+import io.etcd.jetcd.api.LeaseGrpc;
+import io.etcd.jetcd.api.LeaseKeepAliveRequest;
+import io.etcd.jetcd.api.LeaseKeepAliveResponse;
+import io.etcd.jetcd.api.LeaseRevokeRequest;
+import io.etcd.jetcd.api.LeaseRevokeResponse;
+import io.etcd.jetcd.api.PutRequest;
+import io.etcd.jetcd.api.PutResponse;
+import io.etcd.jetcd.api.RangeRequest;
+import io.etcd.jetcd.api.RangeResponse;
+import io.etcd.jetcd.api.RequestOp;
+import io.etcd.jetcd.api.ResponseHeader;
+import io.etcd.jetcd.api.TxnRequest;
+import io.etcd.jetcd.api.TxnResponse;
+import io.etcd.jetcd.api.WatchGrpc;
+import io.etcd.jetcd.api.WatchRequest;
+import io.etcd.jetcd.api.WatchResponse;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import mousio.etcd4j.responses.EtcdErrorCode;
+import mousio.etcd4j.responses.EtcdException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class Etcd3AccessTest {
+  private static final String CONFIG = "/ccentral/services/service/config";
+  private StandIn etcd;
+  private Server server;
+  private ManagedChannel channel;
+  private Etcd3Access access;
+
+  @Before
+  public void setUp() throws Exception {
+    etcd = new StandIn();
+    String name = InProcessServerBuilder.generateName();
+    server = InProcessServerBuilder.forName(name)
+        .addService(etcd.kv)
+        .addService(etcd.lease)
+        .addService(etcd.watch)
+        .build()
+        .start();
+    channel = InProcessChannelBuilder.forName(name).build();
+    access = new Etcd3Access(channel, "service", "client");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    access.close();
+    channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+  }
+
+  /** Client data of one instance is written with a single lease, which is revoked on close */
+  @Test
+  public void clientDataLease() throws Exception {
+    try {
+      access.heartbeat();
+      fail();
+    } catch (EtcdException e) {
+      assertTrue(e.isErrorCode(EtcdErrorCode.KeyNotFound));
+    }
+    access.sendClientInfo("{\"a\": 1}");
+    access.sendClientInfo("{\"a\": 2}");
+    access.heartbeat();
+
+    KeyValue stored = etcd.get("/ccentral/services/service/clients/client");
+    assertThat(stored.getValue().toStringUtf8(), is("{\"a\": 2}"));
+    assertThat(etcd.grants, is(1));
+    assertThat(etcd.leases.get(stored.getLease()), is((long) EtcdAccess.INSTANCE_TTL));
+
+    access.close();
+    for (int i = 0; i < 100 && !etcd.revoked.contains(stored.getLease()); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(etcd.revoked.contains(stored.getLease()));
+  }
+
+  /** Expired lease is replaced on the next write */
+  @Test
+  public void expiredLease() throws Exception {
+    access.sendClientInfo("{}");
+    etcd.leases.clear();
+    try {
+      access.sendClientInfo("{}");
+      fail();
+    } catch (Exception e) {
+      // Lease not found
+    }
+    access.sendClientInfo("{}");
+    assertThat(etcd.grants, is(2));
+  }
+
+  /** Schema is replaced in a transaction comparing the modification revision */
+  @Test
+  public void schemaTransaction() throws Exception {
+    assertThat(access.fetchSchema(), nullValue());
+    access.sendSchema("first");
+    VersionedValue stored = access.fetchSchema();
+    assertThat(stored.getValue(), is("first"));
+
+    access.sendSchema("second", stored.getModifiedIndex());
+    try {
+      access.sendSchema("third", stored.getModifiedIndex());
+      fail();
+    } catch (EtcdException e) {
+      assertTrue(e.isErrorCode(EtcdErrorCode.TestFailed));
+    }
+    assertThat(access.fetchSchema().getValue(), is("second"));
+  }
+
+  /** Configuration changes are read from one watch stream, compacted revisions are reported as cleared indexes */
+  @Test
+  public void configWatch() throws Exception {
+    try {
+      access.fetchConfig();
+      fail();
+    } catch (EtcdException e) {
+      assertTrue(e.isErrorCode(EtcdErrorCode.KeyNotFound));
+    }
+    etcd.put(CONFIG, "1");
+    VersionedValue current = access.fetchConfigVersioned();
+    assertThat(current.getValue(), is("1"));
+    try {
+      access.waitForConfig(current.getEtcdIndex() + 1, 1);
+      fail();
+    } catch (TimeoutException e) {
+      // No changes
+    }
+
+    etcd.put(CONFIG, "2");
+    etcd.put(CONFIG, "3");
+    VersionedValue second = access.waitForConfig(current.getEtcdIndex() + 1, 1);
+    VersionedValue third = access.waitForConfig(second.getModifiedIndex() + 1, 1);
+    assertThat(second.getValue(), is("2"));
+    assertThat(third.getValue(), is("3"));
+    assertThat(etcd.watches, is(1));
+
+    etcd.compacted = third.getModifiedIndex();
+    try {
+      access.waitForConfig(second.getModifiedIndex(), 1);
+      fail();
+    } catch (EtcdException e) {
+      assertTrue(e.isErrorCode(EtcdErrorCode.EventIndexCleared));
+    }
+  }
+
+  /** Client runs on the v3 backend */
+  @Test
+  public void client() throws Exception {
+    etcd.put(CONFIG, "{\"key\": {\"value\": \"value\"}}");
+    CCEtcdClient client = new CCEtcdClient(access);
+    client.addField("key", "title", "desc", "def");
+    client.refresh();
+
+    assertThat(client.getConfigString("key"), is("value"));
+    assertTrue(etcd.get("/ccentral/services/service/schema").getValue().toStringUtf8().contains("\"key\""));
+    assertTrue(etcd.get("/ccentral/services/service/clients/" + client.getClientId()) != null);
+    client.close();
+  }
+
+  /**
+   * Minimal in-memory Etcd implementing the calls used by {@link Etcd3Access}.
+   */
+  private static final class StandIn {
+    private final Map<String, KeyValue> data = new HashMap<>();
+    private final List<Event> history = new ArrayList<>();
+    private final List<Watcher> watchers = new ArrayList<>();
+    private final Map<Long, Long> leases = new HashMap<>();
+    private final List<Long> revoked = new ArrayList<>();
+    private long revision = 1;
+    private long nextLease = 100;
+    private volatile long compacted;
+    private int grants;
+    private int watches;
+
+    private synchronized KeyValue get(String key) {
+      return data.get(key);
+    }
+
+    private synchronized KeyValue put(String key, String value) {
+      return put(ByteString.copyFromUtf8(key), ByteString.copyFromUtf8(value), 0);
+    }
+
+    private synchronized KeyValue put(ByteString key, ByteString value, long lease) {
+      KeyValue keyValue = KeyValue.newBuilder().setKey(key).setValue(value).setLease(lease)
+          .setModRevision(++revision).build();
+      data.put(key.toStringUtf8(), keyValue);
+      Event event = Event.newBuilder().setType(Event.EventType.PUT).setKv(keyValue).build();
+      history.add(event);
+      for (Watcher watcher : watchers) {
+        if (watcher.key.equals(key)) {
+          watcher.send(event);
+        }
+      }
+      return keyValue;
+    }
+
+    private synchronized ResponseHeader header() {
+      return ResponseHeader.newBuilder().setRevision(revision).build();
+    }
+
+    private final KVGrpc.KVImplBase kv = new KVGrpc.KVImplBase() {
+      @Override
+      public void range(RangeRequest request, StreamObserver<RangeResponse> observer) {
+        synchronized (StandIn.this) {
+          RangeResponse.Builder response = RangeResponse.newBuilder().setHeader(header());
+          KeyValue keyValue = data.get(request.getKey().toStringUtf8());
+          if (keyValue != null) {
+            response.addKvs(keyValue).setCount(1);
+          }
+          observer.onNext(response.build());
+        }
+        observer.onCompleted();
+      }
+
+      @Override
+      public void put(PutRequest request, StreamObserver<PutResponse> observer) {
+        synchronized (StandIn.this) {
+          if (request.getLease() != 0 && !leases.containsKey(request.getLease())) {
+            observer.onError(Status.NOT_FOUND.withDescription("requested lease not found").asRuntimeException());
+            return;
+          }
+          StandIn.this.put(request.getKey(), request.getValue(), request.getLease());
+          observer.onNext(PutResponse.newBuilder().setHeader(header()).build());
+        }
+        observer.onCompleted();
+      }
+
+      @Override
+      public void txn(TxnRequest request, StreamObserver<TxnResponse> observer) {
+        synchronized (StandIn.this) {
+          boolean succeeded = true;
+          for (Compare compare : request.getCompareList()) {
+            KeyValue keyValue = data.get(compare.getKey().toStringUtf8());
+            long modified = keyValue == null ? 0 : keyValue.getModRevision();
+            succeeded &= compare.getTarget() == Compare.CompareTarget.MOD && modified == compare.getModRevision();
+          }
+          if (succeeded) {
+            for (RequestOp operation : request.getSuccessList()) {
+              PutRequest put = operation.getRequestPut();
+              StandIn.this.put(put.getKey(), put.getValue(), put.getLease());
+            }
+          }
+          observer.onNext(TxnResponse.newBuilder().setHeader(header()).setSucceeded(succeeded).build());
+        }
+        observer.onCompleted();
+      }
+    };
+
+    private final LeaseGrpc.LeaseImplBase lease = new LeaseGrpc.LeaseImplBase() {
+      @Override
+      public void leaseGrant(LeaseGrantRequest request, StreamObserver<LeaseGrantResponse> observer) {
+        synchronized (StandIn.this) {
+          long id = nextLease++;
+          grants++;
+          leases.put(id, request.getTTL());
+          observer.onNext(LeaseGrantResponse.newBuilder().setID(id).setTTL(request.getTTL()).build());
+        }
+        observer.onCompleted();
+      }
+
+      @Override
+      public void leaseRevoke(LeaseRevokeRequest request, StreamObserver<LeaseRevokeResponse> observer) {
+        synchronized (StandIn.this) {
+          leases.remove(request.getID());
+          revoked.add(request.getID());
+          observer.onNext(LeaseRevokeResponse.newBuilder().setHeader(header()).build());
+        }
+        observer.onCompleted();
+      }
+
+      @Override
+      public StreamObserver<LeaseKeepAliveRequest> leaseKeepAlive(StreamObserver<LeaseKeepAliveResponse> observer) {
+        return new StreamObserver<LeaseKeepAliveRequest>() {
+          @Override
+          public void onNext(LeaseKeepAliveRequest request) {
+            synchronized (StandIn.this) {
+              long ttl = leases.containsKey(request.getID()) ? leases.get(request.getID()) : 0;
+              observer.onNext(LeaseKeepAliveResponse.newBuilder().setID(request.getID()).setTTL(ttl).build());
+            }
+          }
+
+          @Override
+          public void onError(Throwable error) {
+          }
+
+          @Override
+          public void onCompleted() {
+            observer.onCompleted();
+          }
+        };
+      }
+    };
+
+    private final WatchGrpc.WatchImplBase watch = new WatchGrpc.WatchImplBase() {
+      @Override
+      public StreamObserver<WatchRequest> watch(StreamObserver<WatchResponse> observer) {
+        return new StreamObserver<WatchRequest>() {
+          private Watcher watcher;
+
+          @Override
+          public void onNext(WatchRequest request) {
+            synchronized (StandIn.this) {
+              watches++;
+              long start = request.getCreateRequest().getStartRevision();
+              if (start > 0 && start < compacted) {
+                observer.onNext(WatchResponse.newBuilder().setHeader(header()).setCanceled(true)
+                    .setCompactRevision(compacted).build());
+                return;
+              }
+              watcher = new Watcher(request.getCreateRequest().getKey(), observer);
+              observer.onNext(WatchResponse.newBuilder().setHeader(header()).setCreated(true).build());
+              for (Event event : history) {
+                if (event.getKv().getKey().equals(watcher.key) && event.getKv().getModRevision() >= start) {
+                  watcher.send(event);
+                }
+              }
+              watchers.add(watcher);
+            }
+          }
+
+          @Override
+          public void onError(Throwable error) {
+            remove();
+          }
+
+          @Override
+          public void onCompleted() {
+            remove();
+            observer.onCompleted();
+          }
+
+          private void remove() {
+            synchronized (StandIn.this) {
+              watchers.remove(watcher);
+            }
+          }
+        };
+      }
+    };
+
+    private final class Watcher {
+      private final ByteString key;
+      private final StreamObserver<WatchResponse> observer;
+
+      private Watcher(ByteString key, StreamObserver<WatchResponse> observer) {
+        this.key = key;
+        this.observer = observer;
+      }
+
+      private void send(Event event) {
+        observer.onNext(WatchResponse.newBuilder().setHeader(header()).addEvents(event).build());
+      }
+    }
+  }
+}